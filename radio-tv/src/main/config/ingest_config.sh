@@ -6,6 +6,8 @@ COLDFOLDER=$BASEDIR/coldfolder
 LUKEFOLDER=$BASEDIR/lukewarm
 HOTFOLDER=$BASEDIR/hotfolder
 STOPFOLDER=$BASEDIR/stopfolder
+# The ingester keeps its journal of the progress of each file here
+STATEFOLDER=$BASEDIR/statefolder
 WSDL=http://alhena:7980/centralWebservice-service/central/?wsdl
 USERNAME=fedoraAdmin
 PASSWORD=fedoraAdminPass
@@ -26,4 +28,14 @@ EXPORTFOLDER=$BASEDIR/files/export
 
 # Use 4 threads, and poll status (and for stop folder) every 1000 ms
 THREADS=4
-WAIT=1000
\ No newline at end of file
+WAIT=1000
+
+# Only ingest files that have been unchanged for 2000 ms, so half written files are not picked up
+QUIETPERIOD=2000
+
+# Remember the pids of programs by old identifier: none, positive or exclusive.
+# Only use exclusive if this ingester is the only one creating programs in DOMS
+PROGRAMPIDCACHE=positive
+
+# The max number of calls to DOMS in flight at a time, across all the ingesting threads
+MAXDOMSREQUESTS=24
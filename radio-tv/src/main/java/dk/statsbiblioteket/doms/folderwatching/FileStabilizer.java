@@ -0,0 +1,234 @@
+package dk.statsbiblioteket.doms.folderwatching;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Holds back events for files until the files have stopped changing, so the client never sees a half written file.
+ * <p>A file is stable when its size and last modified time have not changed for the quiet period. A file whose last
+ * modified time is already older than the quiet period when it is first seen is stable at once. This is the case for
+ * files that arrive by (atomic) rename, as a rename keeps the last modified time.</p>
+ * <p>The waiting files are kept in a hashed timer wheel, which is advanced by the watcher thread. Further events for a
+ * waiting file cost a map lookup, as the file is only examined when its time comes. This class is not thread safe,
+ * and is only meant to be used from the watcher thread.</p>
+ */
+class FileStabilizer {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final long quietPeriodMS;
+    private final long tickMS;
+    private final long startMS;
+
+    private final List<List<PendingFile>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final Map<Path, PendingFile> pendingFiles = new HashMap<>();
+
+    /**
+     * The number of ticks the wheel have advanced since start
+     */
+    private long currentTick = 0;
+
+    /**
+     * Create a new file stabilizer
+     *
+     * @param quietPeriodMS the time in milliseconds a file must be unchanged before it is considered stable. If 0 or
+     *                      less, all files are stable at once
+     */
+    FileStabilizer(long quietPeriodMS) {
+        this.quietPeriodMS = quietPeriodMS;
+        this.tickMS = Math.max(10, quietPeriodMS / 10);
+        this.startMS = System.currentTimeMillis();
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Offer the event for a file. If the file is already stable, the handler is returned, so it can be dispatched at
+     * once. Otherwise the event is held back, and will be returned from {@link #advance()} when the file have become
+     * stable.
+     * <br>
+     * If an event is already held back for the file, that event is kept, as the file is still new to the client.
+     *
+     * @param file    the file the event concerns
+     * @param handler the handling of the event
+     * @return the handler if the file is stable now, otherwise null
+     */
+    Callable<Path> offer(Path file, Callable<Path> handler) {
+        if (quietPeriodMS <= 0) {
+            return handler;
+        }
+        if (pendingFiles.containsKey(file)) {
+            log.trace("File {} is already waiting to become stable", file);
+            return null;
+        }
+        return offer(file, readAttributes(file), handler);
+    }
+
+    /**
+     * Offer the event for a file, whose attributes have already been read
+     *
+     * @param file       the file the event concerns
+     * @param attributes the attributes of the file, or null if the file is gone
+     * @param handler    the handling of the event
+     * @return the handler if the file is stable now, otherwise null
+     * @see #offer(Path, Callable)
+     */
+    Callable<Path> offer(Path file, BasicFileAttributes attributes, Callable<Path> handler) {
+        if (quietPeriodMS <= 0) {
+            return handler;
+        }
+        if (pendingFiles.containsKey(file)) {
+            log.trace("File {} is already waiting to become stable", file);
+            return null;
+        }
+        if (attributes == null) {
+            log.debug("File {} disappeared before it became stable, so ignoring event", file);
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - attributes.lastModifiedTime().toMillis() >= quietPeriodMS) {
+            log.trace("File {} have not been modified for the quiet period, so it is stable", file);
+            return handler;
+        }
+        log.debug("File {} was recently modified, so waiting for it to become stable", file);
+        PendingFile pendingFile = new PendingFile(file, handler, attributes);
+        pendingFiles.put(file, pendingFile);
+        schedule(pendingFile, now);
+        return null;
+    }
+
+    /**
+     * Forget any event held back for the file. Used when the file is deleted.
+     *
+     * @param file the file
+     */
+    void forget(Path file) {
+        PendingFile pendingFile = pendingFiles.remove(file);
+        if (pendingFile != null) {
+            pendingFile.cancelled = true;
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time, and examine the files whose time have come
+     *
+     * @return the events for the files that have become stable, ordered by file
+     */
+    Map<Path, Callable<Path>> advance() {
+        Map<Path, Callable<Path>> stableFiles = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        long targetTick = (now - startMS) / tickMS;
+        while (currentTick < targetTick) {
+            currentTick++;
+            List<PendingFile> bucket = wheel.get((int) (currentTick % WHEEL_SIZE));
+            List<PendingFile> due = new ArrayList<>();
+            for (Iterator<PendingFile> iterator = bucket.iterator(); iterator.hasNext(); ) {
+                PendingFile pendingFile = iterator.next();
+                if (pendingFile.cancelled) {
+                    iterator.remove();
+                } else if (pendingFile.rounds > 0) {
+                    pendingFile.rounds--;
+                } else {
+                    iterator.remove();
+                    due.add(pendingFile);
+                }
+            }
+            for (PendingFile pendingFile : due) {
+                examine(pendingFile, now, stableFiles);
+            }
+        }
+        return stableFiles;
+    }
+
+    /**
+     * @return true if any events are held back
+     */
+    boolean hasPending() {
+        return !pendingFiles.isEmpty();
+    }
+
+    /**
+     * @return the number of files waiting to become stable
+     */
+    int getPendingCount() {
+        return pendingFiles.size();
+    }
+
+    /**
+     * @return the resolution of the wheel in milliseconds. Advance at least this often while files are pending
+     */
+    long getTickMS() {
+        return tickMS;
+    }
+
+    /**
+     * Check if a file whose time have come is stable. If it is, add it to the stable files. If it have changed,
+     * reschedule it for another quiet period.
+     */
+    private void examine(PendingFile pendingFile, long now, Map<Path, Callable<Path>> stableFiles) {
+        BasicFileAttributes attributes = readAttributes(pendingFile.file);
+        if (attributes == null) {
+            log.debug("File {} disappeared before it became stable, so ignoring it", pendingFile.file);
+            pendingFiles.remove(pendingFile.file);
+        } else if (attributes.size() == pendingFile.size &&
+                   attributes.lastModifiedTime().toMillis() == pendingFile.lastModified) {
+            log.debug("File {} have been unchanged for the quiet period, so it is stable", pendingFile.file);
+            pendingFiles.remove(pendingFile.file);
+            stableFiles.put(pendingFile.file, pendingFile.handler);
+        } else {
+            log.trace("File {} is still changing", pendingFile.file);
+            pendingFile.size = attributes.size();
+            pendingFile.lastModified = attributes.lastModifiedTime().toMillis();
+            schedule(pendingFile, now);
+        }
+    }
+
+    private void schedule(PendingFile pendingFile, long now) {
+        long deadlineTick = (now + quietPeriodMS - startMS + tickMS - 1) / tickMS;
+        long ticks = Math.max(1, deadlineTick - currentTick);
+        pendingFile.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel.get((int) ((currentTick + ticks) % WHEEL_SIZE)).add(pendingFile);
+    }
+
+    private BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A file waiting to become stable
+     */
+    private static class PendingFile {
+        private final Path file;
+        private final Callable<Path> handler;
+        private long size;
+        private long lastModified;
+        private long rounds;
+        private boolean cancelled = false;
+
+        private PendingFile(Path file, Callable<Path> handler, BasicFileAttributes attributes) {
+            this.file = file;
+            this.handler = handler;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
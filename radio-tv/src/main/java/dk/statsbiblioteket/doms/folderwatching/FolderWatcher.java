@@ -5,29 +5,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.Collection;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static dk.statsbiblioteket.doms.folderwatching.Named.nameThread;
 
@@ -40,15 +43,35 @@ import static dk.statsbiblioteket.doms.folderwatching.Named.nameThread;
  * it. The various thread pools will shutdown and the call method will return.</p>
  * <br>
  * The other ways involves the StopFolder. When instantiating this class, you must provide a path to the stop folder. This folder is
- * periodically checked for a file called "stoprunning". If this file is found, the folderWatcher is closed
+ * watched for a file called "stoprunning". If this file is found, the folderWatcher is closed
  * <p>The folder watcher is multithreaded, in that it branches off new threads when invoking the FolderWatcherClient. When
- * constructing a FolderWatcher, specify the number of concurrent threads in this thread pool.</p>
+ * constructing a FolderWatcher, specify the number of concurrent threads in this thread pool. The pool is created when
+ * {@link #call()} starts and lives until the watcher closes, so the worker threads are reused between batches of
+ * events.</p>
+ * <p>Events are handed to the pool as they are read from the watch service, without waiting for earlier events to
+ * finish. The number of events waiting for or being handled is bounded, and the watcher only blocks when this bound is
+ * reached. If several events for a file are waiting, only the latest is handled. Events for files with the same
+ * {@link #getSequencingKey(Path) sequencing key} are handled one at a time, in the order they were seen, while other
+ * events are handled in parallel. If the client throws an exception, the watcher stops.</p>
+ * <p>If a quiet period is given, files are only handed to the client when their size and last modified time have been
+ * unchanged for the quiet period, so the client does not see files that are still being written. Files that arrive by
+ * rename are handed on at once, as their last modified time is already old.</p>
  * <p>You must specify a timeout for the threads. This is the interval between checks for closed or stoprunning as detailed above.</p>
  *
  * @see FolderWatcherClient
  */
 public class FolderWatcher implements Callable<Void> {
 
+    /**
+     * The default maximum number of events waiting for or being handled
+     */
+    public static final int DEFAULT_MAX_QUEUED_EVENTS = 1000;
+
+    /**
+     * The number of preexisting files read before these are dispatched
+     */
+    private static final int SYNC_CHUNK_SIZE = 1000;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final Path folderToWatch;
@@ -57,8 +80,41 @@ public class FolderWatcher implements Callable<Void> {
     private final int threadPoolSize;
     private final Path stopFolder;
     private final ThreadFactory threadFactory;
+    private final int maxQueuedEvents;
+    private final long quietPeriodMS;
+
+    /**
+     * One permit for each event waiting for or being handled. This is the backpressure on the watcher
+     */
+    private final Semaphore queueSlots;
+    /**
+     * The latest event for each file, that have not yet been picked up by a worker
+     */
+    private final Map<Path, Callable<Path>> pendingEvents = new ConcurrentHashMap<>();
+    /**
+     * The size and last modified time of the files, as they were when a worker started handling them. Used to only
+     * dispatch new or changed files when resyncing after an overflow. Files are forgotten when deleted.
+     */
+    private final Map<Path, FileStamp> handledFiles = new ConcurrentHashMap<>();
+    /**
+     * The first exception thrown by the client in a worker. The watcher stops when it sees this
+     */
+    private final AtomicReference<Throwable> workerFailure = new AtomicReference<>();
+
+    /**
+     * The worker pool. Created when call() starts and shut down when it returns
+     */
+    private volatile ThreadPoolExecutor pool;
+    /**
+     * Runs the events on the pool, ordered by the sequencing key of the files
+     */
+    private KeyedExecutor<Object> sequencer;
+    /**
+     * Watches for the stop file. Created when call() starts and closed when it returns
+     */
+    private volatile StopFileWatcher stopFileWatcher;
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
 
     /**
@@ -71,11 +127,46 @@ public class FolderWatcher implements Callable<Void> {
      * @param stopFolder     the folder to check for the file "stoprunning"
      */
     public FolderWatcher(Path folderToWatch, long timeoutInMS, FolderWatcherClient client, int threadPoolSize, Path stopFolder) {
+        this(folderToWatch, timeoutInMS, client, threadPoolSize, stopFolder, DEFAULT_MAX_QUEUED_EVENTS);
+    }
+
+    /**
+     * Create a new folder watcher
+     *
+     * @param folderToWatch   the folder to watch for changes
+     * @param timeoutInMS     the interval between which the stop folder is checked
+     * @param client          the client to invoke when events take place
+     * @param threadPoolSize  the size of the thread pool for client invocations
+     * @param stopFolder      the folder to check for the file "stoprunning"
+     * @param maxQueuedEvents the maximum number of events waiting for or being handled, before the watcher blocks
+     */
+    public FolderWatcher(Path folderToWatch, long timeoutInMS, FolderWatcherClient client, int threadPoolSize,
+                         Path stopFolder, int maxQueuedEvents) {
+        this(folderToWatch, timeoutInMS, client, threadPoolSize, stopFolder, maxQueuedEvents, 0);
+    }
+
+    /**
+     * Create a new folder watcher
+     *
+     * @param folderToWatch   the folder to watch for changes
+     * @param timeoutInMS     the interval between which the stop folder is checked
+     * @param client          the client to invoke when events take place
+     * @param threadPoolSize  the size of the thread pool for client invocations
+     * @param stopFolder      the folder to check for the file "stoprunning"
+     * @param maxQueuedEvents the maximum number of events waiting for or being handled, before the watcher blocks
+     * @param quietPeriodMS   the time in milliseconds a file must be unchanged before the client is told about it.
+     *                        If 0 or less, the client is told at once
+     */
+    public FolderWatcher(Path folderToWatch, long timeoutInMS, FolderWatcherClient client, int threadPoolSize,
+                         Path stopFolder, int maxQueuedEvents, long quietPeriodMS) {
         this.folderToWatch = folderToWatch;
         this.timeoutInMS = timeoutInMS;
         this.client = client;
         this.threadPoolSize = threadPoolSize;
         this.stopFolder = stopFolder;
+        this.maxQueuedEvents = maxQueuedEvents;
+        this.queueSlots = new Semaphore(maxQueuedEvents);
+        this.quietPeriodMS = quietPeriodMS;
 
         final AtomicInteger threadNumber = new AtomicInteger(1);
         final ThreadGroup threadGroup = new ThreadGroup("Worker");
@@ -98,104 +189,20 @@ public class FolderWatcher implements Callable<Void> {
     public synchronized Void call() throws IOException {
         try (Named threadNamer = nameThread("Watcher-" + folderToWatch.getFileName());
              FolderWatcherClient client = this.client; //Trick to autoclose the client when done
-             WatchService watchService = FileSystems.getDefault().newWatchService()) {
-
-            log.debug("Registering a watcher for folder '{}' ", folderToWatch);
-            folderToWatch.register(watchService,
-                                   StandardWatchEventKinds.ENTRY_MODIFY,
-                                   StandardWatchEventKinds.ENTRY_CREATE,
-                                   StandardWatchEventKinds.ENTRY_DELETE);
-
-            //Handle existing files first
-            syncWithFolderContents(client);
-
-            //Then watch for changes
-            watcherLoop:
-            while (true) {
-                //We run until this throws stoppedException
-                shouldStopNow();
-
-                //Handle the hotfolder watcher
-                final WatchKey wk = watchService.poll(timeoutInMS, TimeUnit.MILLISECONDS);
-                if (wk == null) { //If we reached the timeout, the key is null, so go again
-                    log.trace("Timeout while waiting for new events, so restarting");
-                    continue;
-                }
-
-                Map<Path, Callable<Path>> scheduledEvents = new TreeMap<>(); //Treemap as to keep ordering
-
-
-                List<WatchEvent<?>> watchEvents = wk.pollEvents();
-                log.debug("Found {} watch events", watchEvents.size());
-                for (WatchEvent<?> event : watchEvents) {
-                    shouldStopNow(); //Check stop for each event, as there can be quite a lot of events in the queue
-
-                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
-                        log.warn("Watch overflow {}, so resyncing contents of folder {} and restarting watches", event,
-                                 folderToWatch);
-                        resolveEvents(scheduledEvents.values()); //Resolve events gathered so far
-                        syncWithFolderContents(client); //Then sync the files in the folder
-                        wk.reset(); //When we get an Overflow, the rest of the pollEvents should not be meaningful, so reset the key and listen again
-                        continue watcherLoop; //And leave this loop to get a new key
-                    } else {
-                        //Collect the events in a list, for eventual submission to a thread pool
-                        Path file = folderToWatch.resolve((Path) event.context());
-                        Callable<Path> handler = null;
-
-                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                            log.debug("File {} was added. Scheduling work", file.getFileName());
-                            handler = () -> {
-                                try (Named threadNamer2 = nameThread(file);
-                                     Timed timer = Timed.timeExecution("added file")) {
-                                    client.fileAdded(file);
-                                }
-                                return file;
-                            };
-
-                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-                            log.debug("File {} was modified. Scheduling work", file.getFileName());
-                            handler = () -> {
-                                try (Named threadNamer2 = nameThread(file);
-                                     Timed timer = Timed.timeExecution("modified file")) {
-                                    client.fileModified(file);
-                                }
-                                return file;
-                            };
-
-                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
-                            log.debug("File {} was deleted. Scheduling work", file.getFileName());
-                            handler = () -> {
-                                try (Named threadNamer2 = nameThread(file);
-                                     Timed timer = Timed.timeExecution("deleted file")) {
-                                    client.fileDeleted(file);
-                                }
-                                return file;
-                            };
-                        }
-
-                        //Scheduled events is a map, so if several events consern the same file, we overwrite the value
-                        //This way, we only get the latest. This is relevant as the multithreading does not guarantee order
-                        if (handler != null) {
-                            scheduledEvents.put(file, handler);
-                        }
-                    }
-                }
-
-                //Submit all the events to the executor
-                resolveEvents(scheduledEvents.values());
-                //TODO should this actually block? If not, how do we get the exceptions?
-
-                // reset the key
-                boolean valid = wk.reset();
-                if (!valid) {
-                    throw new RuntimeException(
-                            "Key " + wk + " has been invalidated, so no more watching of folder " +
-                            folderToWatch);
-                } else {
-                    log.debug("Requeueing any events that have accumulated while working on this batch");
-                }
+             WatchService watchService = FileSystems.getDefault().newWatchService();
+             StopFileWatcher stopFileWatcher = new StopFileWatcher(stopFolder, timeoutInMS)) {
+
+            this.stopFileWatcher = stopFileWatcher;
+            pool = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 0L, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<>(), threadFactory);
+            pool.prestartAllCoreThreads();
+            sequencer = new KeyedExecutor<>(pool);
+            try {
+                watchFolder(client, watchService);
+            } finally {
+                //The pool must be down before the client is closed, so no worker is still using it
+                shutdownPool();
             }
-
         } catch (StoppedException e) { //Stopped exception stops here
             log.info("Stop flag set, so attempting orderly shutdown");
             return null;
@@ -203,72 +210,330 @@ public class FolderWatcher implements Callable<Void> {
             log.info("Interrupted so attempting orderly shutdown");
             return null;
         }
+        return null;
     }
 
     /**
-     * This method creates a new thread pool for handling the events and submits all events to this pool.
-     * It then waits for all the events to finish before returning
-     * It shoulds down the pool after all the events have been handled.
+     * Register the watch, sync the existing files and then handle events until stopped
      *
-     * @param scheduledEvents the collection of events to handle
-     * @throws StoppedException     If the FolderWatcher became closed
+     * @param client       the client to invoke when events take place
+     * @param watchService the watch service to register the folder on
+     * @throws IOException          If some IO operation failed
+     * @throws InterruptedException if the process was Interrupted
+     */
+    private void watchFolder(FolderWatcherClient client, WatchService watchService) throws IOException, InterruptedException {
+        FileStabilizer stabilizer = new FileStabilizer(quietPeriodMS);
+
+        log.debug("Registering a watcher for folder '{}' ", folderToWatch);
+        folderToWatch.register(watchService,
+                               StandardWatchEventKinds.ENTRY_MODIFY,
+                               StandardWatchEventKinds.ENTRY_CREATE,
+                               StandardWatchEventKinds.ENTRY_DELETE);
+
+        //Handle existing files first
+        syncWithFolderContents(client, stabilizer);
+
+        //Then watch for changes
+        watcherLoop:
+        while (true) {
+            //We run until this throws stoppedException
+            shouldStopNow();
+            checkWorkerFailures();
+
+            //Handle the hotfolder watcher. Wake up often enough to hand on files as they become stable
+            long pollTimeout = stabilizer.hasPending() ? Math.min(timeoutInMS, stabilizer.getTickMS()) : timeoutInMS;
+            final WatchKey wk = watchService.poll(pollTimeout, TimeUnit.MILLISECONDS);
+            if (wk == null) { //If we reached the timeout, the key is null, so go again
+                log.trace("Timeout while waiting for new events, so restarting");
+                dispatchEvents(stabilizer.advance());
+                continue;
+            }
+
+            Map<Path, Callable<Path>> scheduledEvents = new TreeMap<>(); //Treemap as to keep ordering
+
+
+            List<WatchEvent<?>> watchEvents = wk.pollEvents();
+            log.debug("Found {} watch events", watchEvents.size());
+            for (WatchEvent<?> event : watchEvents) {
+                shouldStopNow(); //Check stop for each event, as there can be quite a lot of events in the queue
+
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    log.warn("Watch overflow {}, so resyncing contents of folder {} and restarting watches", event,
+                             folderToWatch);
+                    dispatchEvents(scheduledEvents); //Dispatch events gathered so far
+                    syncWithFolderContents(client, stabilizer); //Then sync the files in the folder
+                    wk.reset(); //When we get an Overflow, the rest of the pollEvents should not be meaningful, so reset the key and listen again
+                    continue watcherLoop; //And leave this loop to get a new key
+                } else {
+                    //Collect the events in a list, for eventual submission to a thread pool
+                    Path file = folderToWatch.resolve((Path) event.context());
+                    Callable<Path> handler = null;
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        log.debug("File {} was added. Scheduling work", file.getFileName());
+                        handler = () -> {
+                            try (Named threadNamer2 = nameThread(file);
+                                 Timed timer = Timed.timeExecution("added file")) {
+                                client.fileAdded(file);
+                            }
+                            return file;
+                        };
+
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                        log.debug("File {} was modified. Scheduling work", file.getFileName());
+                        handler = () -> {
+                            try (Named threadNamer2 = nameThread(file);
+                                 Timed timer = Timed.timeExecution("modified file")) {
+                                client.fileModified(file);
+                            }
+                            return file;
+                        };
+
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        log.debug("File {} was deleted. Scheduling work", file.getFileName());
+                        handler = () -> {
+                            try (Named threadNamer2 = nameThread(file);
+                                 Timed timer = Timed.timeExecution("deleted file")) {
+                                client.fileDeleted(file);
+                            }
+                            return file;
+                        };
+                    }
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        stabilizer.forget(file);
+                        handledFiles.remove(file);
+                    } else if (handler != null) {
+                        //Hold the event back until the file is stable
+                        handler = stabilizer.offer(file, handler);
+                    }
+
+                    //Scheduled events is a map, so if several events consern the same file, we overwrite the value
+                    //This way, we only get the latest. This is relevant as the multithreading does not guarantee order
+                    if (handler != null) {
+                        scheduledEvents.put(file, handler);
+                    }
+                }
+            }
+            //Add the held back files that have become stable in the meantime
+            for (Map.Entry<Path, Callable<Path>> stableFile : stabilizer.advance().entrySet()) {
+                scheduledEvents.putIfAbsent(stableFile.getKey(), stableFile.getValue());
+            }
+
+            //Hand the events to the workers. This only blocks if the work queue is full
+            dispatchEvents(scheduledEvents);
+
+            // reset the key
+            boolean valid = wk.reset();
+            if (!valid) {
+                throw new RuntimeException(
+                        "Key " + wk + " has been invalidated, so no more watching of folder " +
+                        folderToWatch);
+            } else {
+                log.debug("Requeueing any events that have accumulated while dispatching this batch");
+            }
+        }
+    }
+
+    /**
+     * Dispatch all the events, in the order of the map
+     *
+     * @param scheduledEvents the events to handle, keyed by the file they concern
+     * @throws StoppedException     If the FolderWatcher became closed while waiting for room in the work queue
      * @throws InterruptedException If the waiting process was Interrupted
      */
-    protected void resolveEvents(Collection<Callable<Path>> scheduledEvents) throws StoppedException, InterruptedException {
-        if (scheduledEvents.isEmpty()) {//Short circuit to avoid unnessesary pool creation
+    protected void dispatchEvents(Map<Path, Callable<Path>> scheduledEvents) throws StoppedException, InterruptedException {
+        if (scheduledEvents.isEmpty()) {
             return;
         }
-        log.debug("Preparing to resolve a batch of {} events with {} threads", scheduledEvents.size(), threadPoolSize);
-        ExecutorService pool = Executors.newFixedThreadPool(threadPoolSize,
-                                                            threadFactory); //Why can this not be autoclosable??
+        log.debug("Dispatching a batch of {} events to {} threads", scheduledEvents.size(), threadPoolSize);
+        for (Map.Entry<Path, Callable<Path>> scheduledEvent : scheduledEvents.entrySet()) {
+            dispatch(scheduledEvent.getKey(), scheduledEvent.getValue());
+        }
+        log.debug("Batch dispatched. Pool statistics: active={}, queued={}, completed={}",
+                  getActiveCount(), getQueuedCount(), getCompletedCount());
+    }
+
+    /**
+     * Hand an event to the worker pool, without waiting for it to be handled. If the work queue is full, this
+     * blocks until a worker have finished an event, checking the stop flag periodically.
+     * <br>
+     * If an event for the same file is already waiting, it is replaced by this one. Otherwise, the event is handled
+     * after the earlier events with the same sequencing key.
+     *
+     * @param file    the file the event concerns
+     * @param handler the handling of the event
+     * @throws StoppedException     If the FolderWatcher became closed while waiting for room in the work queue
+     * @throws InterruptedException If the waiting process was Interrupted
+     */
+    protected void dispatch(Path file, Callable<Path> handler) throws StoppedException, InterruptedException {
+        while (!queueSlots.tryAcquire(timeoutInMS, TimeUnit.MILLISECONDS)) {
+            log.debug("Work queue is full with {} events, waiting for the workers to catch up", maxQueuedEvents);
+            shouldStopNow();
+            checkWorkerFailures();
+        }
+        if (pendingEvents.put(file, handler) != null) {
+            //We replaced an event that was not started. That event was already submitted, and will handle this one
+            queueSlots.release();
+        } else {
+            sequencer.submit(getSequencingKey(file), () -> handleEvent(file));
+        }
+    }
+
+    /**
+     * Run by the workers. Handles the latest waiting event for the file.
+     *
+     * @param file the file to handle the event for
+     * @return the file
+     */
+    private Path handleEvent(Path file) {
+        Callable<Path> handler = pendingEvents.remove(file);
+        if (handler == null) {
+            return file;
+        }
         try {
-            //Submit all events to the pool
-            List<Future<Path>> futures = scheduledEvents.stream().map(pool::submit).collect(Collectors.toList());
-
-            //Funky construct. The point is to check stop flag periodically, while blocking for results
-            //For each scheduled event (file added)
-            for (Future<Path> future : futures) {
-                Path result = null;
-                do { //Do this (get the result) until you actually get the result.
-                    try {
-                        shouldStopNow(); //Check before waiting
-                        result = future.get(timeoutInMS, TimeUnit.MILLISECONDS);
-                    } catch (TimeoutException e) { //If we timeout while waiting for the result, check stop
-                        shouldStopNow(); //Check after timeout ran out.
-                    } catch (ExecutionException e) { //New runtime exception to stop all
-                        throw new RuntimeException(e.getCause());
-                    }
-                } while (result == null); //This do while runs until we except or get a result
-            }
+            recordHandled(file);
+            handler.call();
+        } catch (Exception e) {
+            log.error("Failed to handle event for file {}, so stopping the watcher", file, e);
+            workerFailure.compareAndSet(null, e);
         } finally {
-            List<Runnable> leftOvers = pool.shutdownNow();
-            if (!leftOvers.isEmpty()) {
-                log.warn("Shutting down execution pool. Some tasks were never started: {}", leftOvers);
-            }
-            do {
-                pool.awaitTermination(timeoutInMS, TimeUnit.MILLISECONDS);
-            } while (!pool.isTerminated());
+            queueSlots.release();
+        }
+        return file;
+    }
+
+    /**
+     * Remember the size and last modified time of a file that is about to be handled
+     *
+     * @param file the file
+     */
+    private void recordHandled(Path file) {
+        try {
+            handledFiles.put(file, new FileStamp(Files.readAttributes(file, BasicFileAttributes.class)));
+        } catch (IOException e) {
+            handledFiles.remove(file);
         }
     }
 
     /**
-     * Sync preexisting files, i.e. files that the folder watcher will not see (as it only sees changes)
+     * Check if a file have already been dispatched, and have not changed since it was handled
+     *
+     * @param file       the file
+     * @param attributes the current attributes of the file
+     * @return true if the file does not need to be dispatched again
+     */
+    private boolean isAlreadyDispatched(Path file, BasicFileAttributes attributes) {
+        return pendingEvents.containsKey(file) || new FileStamp(attributes).equals(handledFiles.get(file));
+    }
+
+    /**
+     * Events for files with equal sequencing keys are handled one at a time, in the order they were seen. Events for
+     * files with different keys are handled in parallel.
+     * <br>
+     * The key is the file name without the extension, so events for a file, and for files that only differ in the
+     * extension, are handled in order.
      *
-     * @param client the client to use
+     * @param file the file an event concerns
+     * @return the sequencing key of the file
+     */
+    protected Object getSequencingKey(Path file) {
+        String filename = file.getFileName().toString();
+        int extensionStart = filename.lastIndexOf('.');
+        return extensionStart > 0 ? filename.substring(0, extensionStart) : filename;
+    }
+
+    /**
+     * Throws a RuntimeException if any worker have failed, to stop the watcher
+     */
+    protected void checkWorkerFailures() {
+        Throwable failure = workerFailure.get();
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Shut down the worker pool. Workers still running are interrupted, and tasks never started are dropped.
+     * Blocks until all the workers have terminated.
+     *
+     * @throws InterruptedException If the waiting process was Interrupted
+     */
+    private void shutdownPool() throws InterruptedException {
+        List<Runnable> leftOvers = pool.shutdownNow();
+        if (!leftOvers.isEmpty()) {
+            log.warn("Shutting down execution pool. Some tasks were never started: {}", leftOvers);
+        }
+        do {
+            pool.awaitTermination(timeoutInMS, TimeUnit.MILLISECONDS);
+        } while (!pool.isTerminated());
+        log.info("Execution pool shut down. Pool statistics: completed={}", getCompletedCount());
+    }
+
+    /**
+     * Sync preexisting files, i.e. files that the folder watcher will not see (as it only sees changes). Files that
+     * have already been dispatched, and have not changed since, are skipped, so a resync after an overflow only
+     * dispatches the files that are new or changed.
+     * <p>The folder is read as a stream, and the files are dispatched in chunks as the folder is read, so the memory
+     * used does not depend on the number of files in the folder. The attributes of each file are read once. Within a
+     * chunk, the oldest files are dispatched first.</p>
+     *
+     * @param client     the client to use
+     * @param stabilizer holds back the files that are still being written
      * @return number of preexisting files handled
      * @throws IOException          If some IO operation failed
      * @throws InterruptedException if the process was Interrupted
      */
-    private int syncWithFolderContents(FolderWatcherClient client) throws IOException, InterruptedException {
-        List<Path> preFiles = Files.list(folderToWatch).sorted(sortOnLastModified()).collect(Collectors.toList());
-        if (preFiles.isEmpty()) {
-            return 0;
+    private int syncWithFolderContents(FolderWatcherClient client, FileStabilizer stabilizer)
+            throws IOException, InterruptedException {
+        log.info("Dispatching preexisting files in {}", folderToWatch);
+        int dispatched = 0;
+        List<Map.Entry<Path, BasicFileAttributes>> chunk = new ArrayList<>(SYNC_CHUNK_SIZE);
+        try (DirectoryStream<Path> preFiles = Files.newDirectoryStream(folderToWatch)) {
+            for (Path preFile : preFiles) {
+                shouldStopNow(); //Check for each file, as this can take a while
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(preFile, BasicFileAttributes.class);
+                    chunk.add(new AbstractMap.SimpleImmutableEntry<>(preFile, attributes));
+                } catch (NoSuchFileException e) {
+                    log.debug("File {} disappeared while syncing, so ignoring it", preFile);
+                    continue;
+                }
+                if (chunk.size() >= SYNC_CHUNK_SIZE) {
+                    dispatched += dispatchPreexistingFiles(client, stabilizer, chunk);
+                    chunk.clear();
+                }
+            }
         }
+        dispatched += dispatchPreexistingFiles(client, stabilizer, chunk);
 
-        log.info("Found {} preexisting files in {}, handling these", preFiles.size(), folderToWatch);
-        Map<Path, Callable<Path>> scheduledEvents = new TreeMap<>();
-        for (Path preFile : preFiles) {
-            shouldStopNow(); //Check for each file, as this can take a while //TODO is this to much?
+        //Deletes could have been lost in an overflow, so forget the handled files that are gone
+        handledFiles.keySet().removeIf(file -> !Files.exists(file));
+        log.info("All {} preexisting files in {} have been dispatched, so proceeding to listen for changes",
+                 dispatched, folderToWatch);
+        return dispatched;
+    }
+
+    /**
+     * Dispatch a chunk of preexisting files, oldest first
+     *
+     * @param client     the client to use
+     * @param stabilizer holds back the files that are still being written
+     * @param chunk      the files with their attributes
+     * @return the number of files dispatched now
+     * @throws InterruptedException if the process was Interrupted
+     */
+    private int dispatchPreexistingFiles(FolderWatcherClient client, FileStabilizer stabilizer,
+                                         List<Map.Entry<Path, BasicFileAttributes>> chunk)
+            throws InterruptedException {
+        chunk.sort(sortOnLastModified());
+        Map<Path, Callable<Path>> scheduledEvents = new LinkedHashMap<>(); //Linked to keep the sort order
+        for (Map.Entry<Path, BasicFileAttributes> entry : chunk) {
+            Path preFile = entry.getKey();
+            if (isAlreadyDispatched(preFile, entry.getValue())) {
+                log.trace("File {} have already been dispatched and is unchanged, so skipping it", preFile);
+                continue;
+            }
             Callable<Path> handler = () -> {
                 try (Named ignored = nameThread(preFile);
                      Timed timer = Timed.timeExecution("preexisting file")) { //Trick to rename the thread and name it back
@@ -276,33 +541,30 @@ public class FolderWatcher implements Callable<Void> {
                 }
                 return preFile;
             };
-            scheduledEvents.put(preFile, handler);
+            handler = stabilizer.offer(preFile, entry.getValue(), handler);
+            if (handler != null) {
+                scheduledEvents.put(preFile, handler);
+            }
         }
-        resolveEvents(scheduledEvents.values());
-
-        log.info("All preexisting files in {} have been handled, so proceeding to listen for changes",
-                 folderToWatch);
+        dispatchEvents(scheduledEvents);
         return scheduledEvents.size();
     }
 
 
-    protected Comparator<Path> sortOnLastModified() {
-        return (Path o1, Path o2) -> {
-            try {
-                return Files.getLastModifiedTime(o1).compareTo(Files.getLastModifiedTime(o2));
-            } catch (IOException e) { //I h8 u2, Streams and IOExceptions
-                throw new UncheckedIOException(e);
-            }
-        };
+    protected Comparator<Map.Entry<Path, BasicFileAttributes>> sortOnLastModified() {
+        return Comparator.comparing((Map.Entry<Path, BasicFileAttributes> entry) -> entry.getValue().lastModifiedTime())
+                         .thenComparing(Map.Entry::getKey);
     }
 
     /**
-     * Throws StoppedException if the closed property is true or if the stopfolder contains a file "stoprunning"
+     * Throws StoppedException if the closed property is true or if the stopfolder contains a file "stoprunning".
+     * This is cheap, as the stop folder is watched in the background.
      *
      * @throws StoppedException as above
      */
     protected void shouldStopNow() throws StoppedException {
-        if (isClosed() || Files.exists(stopFolder.resolve("stoprunning"))) {
+        StopFileWatcher stopFileWatcher = this.stopFileWatcher;
+        if (isClosed() || (stopFileWatcher != null && stopFileWatcher.isStopRequested())) {
             throw new StoppedException();
         }
     }
@@ -315,6 +577,60 @@ public class FolderWatcher implements Callable<Void> {
         this.closed = closed;
     }
 
+    /**
+     * @return the approximate number of workers currently handling events, or 0 if the watcher is not running
+     */
+    public int getActiveCount() {
+        ThreadPoolExecutor pool = this.pool;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * @return the number of events waiting for a worker
+     */
+    public int getQueuedCount() {
+        return pendingEvents.size();
+    }
+
+    /**
+     * @return the approximate number of events handled since the watcher started, or 0 if it was never started
+     */
+    public long getCompletedCount() {
+        ThreadPoolExecutor pool = this.pool;
+        return pool == null ? 0 : pool.getCompletedTaskCount();
+    }
+
+
+    /**
+     * The size and last modified time of a file
+     */
+    private static final class FileStamp {
+        private final long size;
+        private final long lastModified;
+
+        private FileStamp(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp that = (FileStamp) o;
+            return size == that.size && lastModified == that.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+
 
     /**
      * Throwing this method signals that an overly shutdown have been requested
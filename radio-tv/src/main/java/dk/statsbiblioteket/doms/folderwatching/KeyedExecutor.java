@@ -0,0 +1,176 @@
+package dk.statsbiblioteket.doms.folderwatching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks so that tasks sharing a key run one at a time, in the order they were given, while tasks with no keys in
+ * common run in parallel.
+ * <p>A task can have several keys. It then waits for the earlier tasks of all its keys, and later tasks with any of
+ * its keys wait for it.</p>
+ * <p>Tasks can either be submitted to run on the executor, with {@link #submit(Collection, Callable)}, or be run on
+ * the calling thread, with {@link #call(Collection, Callable)}. The latter is the keyed equivalent of taking a lock.</p>
+ * <p>A task runs after the earlier tasks of its keys, whether these succeeded or failed.</p>
+ *
+ * @param <K> the type of the keys
+ */
+public class KeyedExecutor<K> {
+
+    private final Executor executor;
+
+    /**
+     * For each key, a future that completes when the latest task with that key is done. Guarded by itself.
+     */
+    private final Map<K, CompletableFuture<Void>> tails = new HashMap<>();
+
+    /**
+     * Create a keyed executor, where submitted tasks run on the thread that completes the task before them.
+     * Use this if only {@link #call(Collection, Callable)} is needed.
+     */
+    public KeyedExecutor() {
+        this(Runnable::run);
+    }
+
+    /**
+     * Create a keyed executor
+     *
+     * @param executor the executor to run submitted tasks on
+     */
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submit a task to run on the executor, after the earlier tasks with the same key
+     *
+     * @param key  the key of the task
+     * @param task the task
+     * @param <V>  the result type of the task
+     * @return a future for the result of the task
+     */
+    public <V> CompletableFuture<V> submit(K key, Callable<V> task) {
+        return submit(Collections.singleton(key), task);
+    }
+
+    /**
+     * Submit a task to run on the executor, after the earlier tasks sharing any of the keys
+     *
+     * @param keys the keys of the task
+     * @param task the task
+     * @param <V>  the result type of the task
+     * @return a future for the result of the task. If the executor rejects the task, e.g. as it is shut down, this
+     * fails with the {@link RejectedExecutionException}, and the later tasks of the keys run without it.
+     */
+    public <V> CompletableFuture<V> submit(Collection<K> keys, Callable<V> task) {
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CompletableFuture<Void> predecessors = enqueue(keys, gate);
+
+        CompletableFuture<V> result = new CompletableFuture<>();
+        predecessors.whenCompleteAsync((ignored, ignoredFailure) -> {
+            V value = null;
+            Throwable failure = null;
+            try {
+                value = task.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            //Dequeue before completing, so whoever waits for the result sees the keys released
+            dequeue(keys, gate);
+            if (failure == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        }, executor).exceptionally(rejected -> {
+            //The task itself never fails here, so the executor rejected it. It is never run, so give up its place
+            dequeue(keys, gate);
+            result.completeExceptionally(rejected instanceof CompletionException ? rejected.getCause() : rejected);
+            return null;
+        });
+        return result;
+    }
+
+    /**
+     * Run the task on the calling thread, after the earlier tasks sharing any of the keys. Blocks until the task
+     * is done.
+     *
+     * @param keys the keys of the task
+     * @param task the task
+     * @param <V>  the result type of the task
+     * @return the result of the task
+     * @throws InterruptedException if interrupted while waiting for the earlier tasks. The task is not run.
+     * @throws Exception            whatever the task throws
+     */
+    public <V> V call(Collection<K> keys, Callable<V> task) throws Exception {
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CompletableFuture<Void> predecessors = enqueue(keys, gate);
+        try {
+            predecessors.get();
+        } catch (InterruptedException e) {
+            //Later tasks must still wait for the earlier tasks, so pass our place on when these are done
+            predecessors.whenComplete((ignored, ignoredFailure) -> dequeue(keys, gate));
+            throw e;
+        } catch (ExecutionException e) {
+            //Never happens, as the gates are always completed normally
+        }
+        try {
+            return task.call();
+        } finally {
+            dequeue(keys, gate);
+        }
+    }
+
+    /**
+     * @return the number of keys that currently have a task waiting or running
+     */
+    public int getKeyCount() {
+        synchronized (tails) {
+            return tails.size();
+        }
+    }
+
+    /**
+     * Make the gate the latest task for all the keys
+     *
+     * @param keys the keys
+     * @param gate the future to complete when the new task is done
+     * @return a future that completes when the earlier tasks with any of the keys are done
+     */
+    private CompletableFuture<Void> enqueue(Collection<K> keys, CompletableFuture<Void> gate) {
+        List<CompletableFuture<Void>> predecessors = new ArrayList<>(keys.size());
+        synchronized (tails) {
+            for (K key : keys) {
+                CompletableFuture<Void> previous = tails.put(key, gate);
+                if (previous != null && previous != gate) { //The same key could be given twice
+                    predecessors.add(previous);
+                }
+            }
+        }
+        return CompletableFuture.allOf(predecessors.toArray(new CompletableFuture[predecessors.size()]));
+    }
+
+    /**
+     * Open the gate for the next tasks, and forget the keys if no later task have used them
+     *
+     * @param keys the keys
+     * @param gate the gate of the finished task
+     */
+    private void dequeue(Collection<K> keys, CompletableFuture<Void> gate) {
+        gate.complete(null);
+        synchronized (tails) {
+            for (K key : keys) {
+                tails.remove(key, gate);
+            }
+        }
+    }
+}
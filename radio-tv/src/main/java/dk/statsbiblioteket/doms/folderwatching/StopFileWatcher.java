@@ -0,0 +1,104 @@
+package dk.statsbiblioteket.doms.folderwatching;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the stop folder for the file "stoprunning", and remembers if it have been seen.
+ * <p>A background thread waits for changes to the stop folder, and looks for the stop file when something changes.
+ * As watch events are not delivered for all file systems (such as changes made by other machines on NFS), it also
+ * looks once per poll interval. Asking if stop have been requested is thus only a memory read.</p>
+ * <p>Once the stop file have been seen, stop stays requested, even if the file is removed again.</p>
+ */
+public class StopFileWatcher implements AutoCloseable {
+
+    /**
+     * The name of the file that signals stop
+     */
+    public static final String STOP_FILE_NAME = "stoprunning";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Path stopFile;
+    private final long pollIntervalMS;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    private volatile boolean stopRequested = false;
+
+    /**
+     * Start watching the stop folder
+     *
+     * @param stopFolder     the folder to watch for the file "stoprunning"
+     * @param pollIntervalMS the interval between looks for the stop file, if no watch events are delivered
+     * @throws IOException if the stop folder could not be watched
+     */
+    public StopFileWatcher(Path stopFolder, long pollIntervalMS) throws IOException {
+        this.stopFile = stopFolder.resolve(STOP_FILE_NAME);
+        this.pollIntervalMS = pollIntervalMS;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            stopFolder.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        //Look once before returning, so a stop file that is already there is seen at once
+        checkStopFile();
+
+        watcherThread = new Thread(this::watch, "StopWatcher-" + stopFolder.getFileName());
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * @return true if the stop file have been seen
+     */
+    public boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Stop watching the stop folder
+     */
+    @Override
+    public void close() throws IOException {
+        watcherThread.interrupt();
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (!stopRequested) {
+                WatchKey key = watchService.poll(pollIntervalMS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    //We do not care what changed, only if the stop file is there now
+                    key.pollEvents();
+                    key.reset();
+                }
+                checkStopFile();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped watching for {}", stopFile);
+        }
+    }
+
+    private void checkStopFile() {
+        if (Files.exists(stopFile)) {
+            log.info("Found stop file {}", stopFile);
+            stopRequested = true;
+        }
+    }
+}
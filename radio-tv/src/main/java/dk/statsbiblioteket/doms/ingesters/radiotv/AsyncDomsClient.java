@@ -0,0 +1,334 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import org.w3c.dom.Document;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Asynchronous facade of the {@link DomsWSClient}. Each call returns at once with a {@link CompletableFuture}, and is
+ * made on the I/O executor, so the calls of an ingest can be in flight at the same time without a thread waiting for
+ * each of them.
+ * <p>At most the given number of calls are in flight at a time, across everything using this client. Calls beyond
+ * that wait in a queue, not in a thread, and are made in the order they were asked for. A client {@link
+ * #limitedTo(int) limited} further can be made for each part of the work, so one part cannot take all the calls in
+ * flight.</p>
+ * <p>A failed call completes its future exceptionally with the exception of the DOMS client, e.g. {@link
+ * ServerOperationFailed}. Use {@link #await(CompletableFuture)} to wait for a call and get that exception back.</p>
+ */
+public class AsyncDomsClient {
+
+    /**
+     * The default max number of calls in flight, which is what the default number of ingesting threads made at most
+     * before the calls were made here
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 24;
+
+    /**
+     * A call of the DOMS client
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T call(DomsWSClient domsClient) throws Exception;
+    }
+
+    private final DomsWSClient domsClient;
+    private final Executor ioExecutor;
+    /**
+     * The client to make the calls through, if this is a limited client, or null if this makes them itself
+     */
+    private final AsyncDomsClient parent;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    /**
+     * The results of the calls asked for through this client that have not been made yet
+     */
+    private final Set<CompletableFuture<?>> notStarted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create an asynchronous client
+     *
+     * @param domsClient  the client to make the calls with
+     * @param ioExecutor  the executor to make the calls on. Runnable::run makes them on the calling thread, one after
+     *                    another
+     * @param maxInFlight the max number of calls in flight at a time
+     */
+    public AsyncDomsClient(DomsWSClient domsClient, Executor ioExecutor, int maxInFlight) {
+        this.domsClient = domsClient;
+        this.ioExecutor = ioExecutor;
+        this.parent = null;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    private AsyncDomsClient(AsyncDomsClient parent, int maxInFlight) {
+        this.domsClient = parent.domsClient;
+        this.ioExecutor = null;
+        this.parent = parent;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Get a client that makes its calls through this one, with at most the given number of them in flight. The
+     * calls still count against the limit of this client.
+     *
+     * @param maxInFlight the max number of calls of the new client in flight at a time
+     * @return the new client
+     */
+    public AsyncDomsClient limitedTo(int maxInFlight) {
+        return new AsyncDomsClient(this, maxInFlight);
+    }
+
+    /**
+     * @return the max number of calls in flight at a time. For a limited client, this is its own limit
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Make a call of the DOMS client
+     *
+     * @param call the call
+     * @return the result of the call. Cancelling it before the call is made skips the call.
+     */
+    public <T> CompletableFuture<T> call(Call<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        notStarted.add(result);
+        submit(client -> {
+            notStarted.remove(result);
+            return call.call(client);
+        }, result, () -> notStarted.remove(result));
+        return result;
+    }
+
+    /**
+     * Cancel the calls asked for through this client that are still waiting for a permit, here or in a parent. Calls
+     * already made are left to complete.
+     */
+    public void cancelWaiting() {
+        for (CompletableFuture<?> result : notStarted) {
+            result.cancel(false);
+        }
+    }
+
+    public CompletableFuture<String> getFileObjectPID(URL fileURL) {
+        return call(client -> client.getFileObjectPID(fileURL));
+    }
+
+    public CompletableFuture<List<String>> getPidFromOldIdentifier(String oldIdentifier) {
+        return call(client -> client.getPidFromOldIdentifier(oldIdentifier));
+    }
+
+    public CompletableFuture<String> createObjectFromTemplate(String templatePID, List<String> oldIdentifiers,
+                                                              String comment) {
+        return call(client -> client.createObjectFromTemplate(templatePID, oldIdentifiers, comment));
+    }
+
+    public CompletableFuture<Void> setObjectLabel(String objectPID, String objectLabel, String comment) {
+        return call(client -> {
+            client.setObjectLabel(objectPID, objectLabel, comment);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Document> getDataStream(String objectPID, String datastreamID) {
+        return call(client -> client.getDataStream(objectPID, datastreamID));
+    }
+
+    public CompletableFuture<Void> updateDataStream(String objectPID, String datastreamID, Document document,
+                                                    String comment) {
+        return call(client -> {
+            client.updateDataStream(objectPID, datastreamID, document, comment);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Relation>> listObjectRelations(String objectPID, String relationType) {
+        return call(client -> client.listObjectRelations(objectPID, relationType));
+    }
+
+    public CompletableFuture<Void> addObjectRelation(String pid, String predicate, String objectPid, String comment) {
+        return call(client -> {
+            client.addObjectRelation(pid, predicate, objectPid, comment);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> removeObjectRelation(LiteralRelation relation, String comment) {
+        return call(client -> {
+            client.removeObjectRelation(relation, comment);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> publishObjects(String comment, String... pids) {
+        return call(client -> {
+            client.publishObjects(comment, pids);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> unpublishObjects(String comment, String... pids) {
+        return call(client -> {
+            client.unpublishObjects(comment, pids);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteObjects(String comment, String... pids) {
+        return call(client -> {
+            client.deleteObjects(comment, pids);
+            return null;
+        });
+    }
+
+    /**
+     * Queue a call until it gets a permit
+     *
+     * @param call     the call
+     * @param result   the result of the call
+     * @param released run when the call is done, before the result is completed, to release the permits of the
+     *                 limited clients it was made through
+     */
+    private <T> void submit(Call<T> call, CompletableFuture<T> result, Runnable released) {
+        waiting.add(() -> start(call, result, released));
+        dispatch();
+    }
+
+    /**
+     * Start a call that have got a permit. A limited client passes it on to its parent, keeping its permit until the
+     * call is done, and others make it on the I/O executor. The result is the same all the way, so a call cancelled
+     * while waiting in any of the queues is skipped.
+     */
+    private <T> void start(Call<T> call, CompletableFuture<T> result, Runnable released) {
+        if (parent == null) {
+            try {
+                ioExecutor.execute(() -> run(call, result, released));
+            } catch (RejectedExecutionException e) {
+                run(call, result, released); //The executor is shut down, so make the call here rather than never
+            }
+        } else {
+            parent.submit(call, result, () -> {
+                inFlight.release();
+                released.run();
+                dispatch();
+            });
+        }
+    }
+
+    /**
+     * Make a call, and complete its result
+     */
+    private <T> void run(Call<T> call, CompletableFuture<T> result, Runnable released) {
+        T value = null;
+        Throwable failure = null;
+        try {
+            if (!result.isDone()) { //else cancelled while waiting
+                value = call.call(domsClient);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+        done(result, value, failure, released);
+    }
+
+    /**
+     * Release the permits of a call, and complete its result. The permits are released before the result is
+     * completed, so a call made by whatever waits for the result can start at once.
+     */
+    private <T> void done(CompletableFuture<T> result, T value, Throwable failure, Runnable released) {
+        inFlight.release();
+        released.run();
+        if (failure != null) {
+            result.completeExceptionally(failure);
+        } else {
+            result.complete(value);
+        }
+        dispatch();
+    }
+
+    /**
+     * Start waiting calls while there are free permits. This is done when a call is asked for and when one is done,
+     * so a call is never left waiting with a permit free.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.release(); //Taken by another thread, so check again
+                continue;
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Wait for a call to complete
+     *
+     * @param call the call
+     * @return the result of the call
+     * @throws ServerOperationFailed if the call failed with this
+     */
+    public static <T> T await(CompletableFuture<T> call) throws ServerOperationFailed {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            throw failure(e.getCause(), ServerOperationFailed.class);
+        }
+    }
+
+    /**
+     * Wait for a lookup to complete
+     *
+     * @param lookup the lookup
+     * @return the result of the lookup
+     * @throws NoObjectFound         if the lookup found nothing
+     * @throws ServerOperationFailed if the lookup failed with this
+     */
+    public static <T> T awaitLookup(CompletableFuture<T> lookup) throws NoObjectFound, ServerOperationFailed {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NoObjectFound) {
+                throw (NoObjectFound) e.getCause();
+            }
+            throw failure(e.getCause(), ServerOperationFailed.class);
+        }
+    }
+
+    /**
+     * Get the failure of a call as the expected exception, or throw it if it is unchecked
+     *
+     * @param failure  the failure
+     * @param expected the checked exception expected
+     * @return the failure
+     */
+    static <E extends Exception> E failure(Throwable failure, Class<E> expected) {
+        if (expected.isInstance(failure)) {
+            return expected.cast(failure);
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            throw new CompletionException(failure);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings. Answers whether a string might have been added, or definitely have not.
+ * <p>Sized from the expected number of strings and the wanted false positive rate. Adding more strings than expected
+ * works, but raises the false positive rate. Thread safe without locking, as the bits are set atomically.</p>
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x424c4f4d; //BLOM
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+
+    /**
+     * Create an empty filter
+     *
+     * @param expectedStrings   the number of strings expected to be added
+     * @param falsePositiveRate the wanted rate of false positives at that number of strings, e.g. 0.01
+     */
+    public BloomFilter(long expectedStrings, double falsePositiveRate) {
+        long n = Math.max(1, expectedStrings);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.numBits = words * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    /**
+     * Add a string to the filter
+     *
+     * @param string the string
+     */
+    public void add(String string) {
+        long hash1 = hash(string, 0xcbf29ce484222325L);
+        long hash2 = hash(string, 0x84222325cbf29ce4L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    /**
+     * Check if a string might have been added
+     *
+     * @param string the string
+     * @return false if the string have definitely not been added, true if it might have been
+     */
+    public boolean mightContain(String string) {
+        long hash1 = hash(string, 0xcbf29ce484222325L);
+        long hash2 = hash(string, 0x84222325cbf29ce4L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the filter to a file. The file is replaced atomically, so a crash while writing leaves the old file.
+     *
+     * @param file the file
+     * @throws IOException if the file could not be written
+     */
+    public void write(Path file) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeLong(numBits);
+            out.writeInt(numHashes);
+            for (int i = 0; i < bits.length(); i++) {
+                out.writeLong(bits.get(i));
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Add the strings of a filter written to a file by {@link #write(Path)}. The strings already added are kept.
+     *
+     * @param file the file
+     * @return true if the strings were added, false if the file is not a whole filter of the same size as this
+     * @throws IOException if the file could not be read
+     */
+    public boolean addAll(Path file) throws IOException {
+        long[] words = new long[bits.length()];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != numBits || in.readInt() != numHashes) {
+                return false;
+            }
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        for (int i = 0; i < words.length; i++) {
+            bits.accumulateAndGet(i, words[i], (current, added) -> current | added);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bits in the filter
+     */
+    public long getNumBits() {
+        return numBits;
+    }
+
+    /**
+     * @return the number of bits set per string
+     */
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes of the string, from the given offset basis, with a final mix so the low bits are
+     * usable
+     */
+    private static long hash(String string, long seed) {
+        long hash = seed;
+        for (byte b : string.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
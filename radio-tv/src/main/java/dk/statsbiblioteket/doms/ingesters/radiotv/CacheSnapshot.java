@@ -0,0 +1,231 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of a {@link LookupCache} of strings, written to a file when the ingester stops, and used by the cache of
+ * the next ingester, so it starts warm.
+ * <p>The file is memory mapped, and the entries are sorted by key, so a key is found by binary search directly in the
+ * file. Nothing is read into the heap at startup, and only the pages of the keys looked up are ever read.</p>
+ * <p>The layout is a header of magic, version and entry count, a table of the offsets of the entries, and then the
+ * entries, each as expiry time, key and value. Strings are written as length and UTF-8 bytes.</p>
+ * <p>The file could be truncated or corrupt, e.g. by a full disk, so every offset and length read from it is checked
+ * against its size. If one is out of bounds, the snapshot is ignored from then on.</p>
+ */
+final class CacheSnapshot implements LookupCache.Snapshot<String, String> {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x444f4d53; //DOMS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    /**
+     * Set when an entry is found out of bounds, so the snapshot is not used any more
+     */
+    private volatile boolean corrupt;
+
+    private CacheSnapshot(Path file, MappedByteBuffer buffer, int count) {
+        this.file = file;
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * Write the live entries of a cache to a snapshot file. The file is forced to disk and replaced atomically, so a
+     * crash while writing leaves the old snapshot.
+     *
+     * @param cache the cache
+     * @param file  the snapshot file
+     * @throws IOException if the file could not be written
+     */
+    static void write(LookupCache<String, String> cache, Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (Map.Entry<String, LookupCache.Expiring<String>> entry : cache.liveEntries().entrySet()) {
+            records.add(new Record(entry.getKey().getBytes(StandardCharsets.UTF_8),
+                                   entry.getValue().value.getBytes(StandardCharsets.UTF_8),
+                                   entry.getValue().expiresAtMS));
+        }
+        records.sort((a, b) -> compare(a.key, b.key));
+
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            int offset = HEADER_SIZE + 4 * records.size();
+            for (Record record : records) {
+                out.writeInt(offset);
+                offset += 8 + 4 + record.key.length + 4 + record.value.length;
+            }
+            for (Record record : records) {
+                out.writeLong(record.expiresAtMS);
+                out.writeInt(record.key.length);
+                out.write(record.key);
+                out.writeInt(record.value.length);
+                out.write(record.value);
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Wrote {} entries of cache {} to snapshot {}", records.size(), cache, file);
+    }
+
+    /**
+     * Open a snapshot file
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if there is no snapshot file, or it is not one we can read
+     * @throws IOException if the file could not be read
+     */
+    static CacheSnapshot open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            log.info("No cache snapshot {}, so starting with an empty cache", file);
+            return null;
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            log.warn("Ignoring cache snapshot {}, as it is not a snapshot this version can read", file);
+            return null;
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || HEADER_SIZE + 4L * count > buffer.limit()) {
+            log.warn("Ignoring cache snapshot {}, as it is truncated or corrupt", file);
+            return null;
+        }
+        log.info("Using cache snapshot {} with {} entries", file, count);
+        return new CacheSnapshot(file, buffer, count);
+    }
+
+    @Override
+    public LookupCache.Expiring<String> get(String key) {
+        if (corrupt) {
+            return null;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer view = buffer.duplicate();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = view.getInt(HEADER_SIZE + 4 * middle);
+            if (!inBounds(offset, 12)) {
+                return corrupted();
+            }
+            int keyLength = view.getInt(offset + 8);
+            if (!inBounds(offset + 12L, keyLength + 4L)) {
+                return corrupted();
+            }
+            int comparison = compare(view, offset + 12, keyLength, keyBytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                long expiresAtMS = view.getLong(offset);
+                int valueOffset = offset + 12 + keyLength;
+                int valueLength = view.getInt(valueOffset);
+                if (!inBounds(valueOffset + 4L, valueLength)) {
+                    return corrupted();
+                }
+                byte[] value = new byte[valueLength];
+                view.position(valueOffset + 4);
+                view.get(value);
+                return new LookupCache.Expiring<>(new String(value, StandardCharsets.UTF_8), expiresAtMS);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check that a part of the file is within the file
+     *
+     * @param position the position of the part
+     * @param length   the length of the part
+     * @return true if the part is within the file
+     */
+    private boolean inBounds(long position, long length) {
+        return position >= 0 && length >= 0 && position + length <= buffer.limit();
+    }
+
+    private LookupCache.Expiring<String> corrupted() {
+        if (!corrupt) {
+            corrupt = true;
+            log.warn("Ignoring the rest of cache snapshot {}, as it is corrupt", file);
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of entries in the snapshot
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Compare the bytes of two keys as unsigned bytes, so the order matches the order of the UTF-8 strings
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int comparison = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static int compare(ByteBuffer buffer, int offset, int length, byte[] key) {
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = Integer.compare(buffer.get(offset + i) & 0xFF, key[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * An entry as written to the snapshot
+     */
+    private static final class Record {
+        private final byte[] key;
+        private final byte[] value;
+        private final long expiresAtMS;
+
+        private Record(byte[] key, byte[] value, long expiresAtMS) {
+            this.key = key;
+            this.value = value;
+            this.expiresAtMS = expiresAtMS;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the {@link XmlDigest}s of the files in a folder, by file name.
+ * <p>The digest of a file is calculated the first time it is asked for, and remembered together with the size and
+ * last modified time of the file. If the file is replaced behind our back, the digest is calculated again. Checking if
+ * a file is a duplicate of the one in the folder is thus one digest calculation and a lookup.</p>
+ */
+public class DigestIndex {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Path folder;
+
+    private final Map<String, Indexed> index = new ConcurrentHashMap<>();
+
+    /**
+     * Create an empty index of a folder
+     *
+     * @param folder the folder
+     */
+    public DigestIndex(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Get the digest of the file with the given name in the folder
+     *
+     * @param filename the name of the file
+     * @return the digest, or null if there is no such file, or it is not well formed xml
+     * @throws IOException if the file could not be read
+     */
+    public String getDigest(String filename) throws IOException {
+        Path file = folder.resolve(filename);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            index.remove(filename);
+            return null;
+        }
+        Indexed indexed = index.get(filename);
+        if (indexed != null && indexed.matches(attributes)) {
+            return indexed.digest;
+        }
+        try {
+            String digest = XmlDigest.digest(file);
+            index.put(filename, new Indexed(digest, attributes));
+            return digest;
+        } catch (SAXException e) {
+            log.debug("File {} is not well formed xml, so it has no digest", file, e);
+            index.remove(filename);
+            return null;
+        }
+    }
+
+    /**
+     * Remember the digest of a file that was just written to the folder, so it does not have to be read again
+     *
+     * @param filename the name of the file
+     * @param digest   the digest of the content of the file
+     * @throws IOException if the file could not be examined
+     */
+    public void put(String filename, String digest) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(folder.resolve(filename), BasicFileAttributes.class);
+        index.put(filename, new Indexed(digest, attributes));
+    }
+
+    /**
+     * Forget the digest of a file, as it have been replaced
+     *
+     * @param filename the name of the file
+     */
+    public void invalidate(String filename) {
+        index.remove(filename);
+    }
+
+    /**
+     * @return the number of files with a known digest
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * A digest together with the version of the file it was calculated from
+     */
+    private static final class Indexed {
+        private final String digest;
+        private final long size;
+        private final long lastModified;
+
+        private Indexed(String digest, BasicFileAttributes attributes) {
+            this.digest = digest;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
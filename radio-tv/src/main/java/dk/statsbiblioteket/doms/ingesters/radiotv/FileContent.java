@@ -0,0 +1,144 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of a file, read once into an immutable buffer. Everything that needs the content of the file, i.e. the
+ * duplicate check and the parse, reads it from here instead of from the disk.
+ * <p>Small files are read into memory. Large files are memory mapped, so they are paged in by the OS as they are
+ * read, instead of being copied to the heap. A mapped file can still be moved, as the mapping is of the file, not the
+ * name.</p>
+ */
+public final class FileContent {
+
+    /**
+     * Files larger than this are memory mapped
+     */
+    static final long MAPPING_THRESHOLD = 1024 * 1024;
+
+    private final Path file;
+    private final ByteBuffer content;
+    private volatile String digest;
+
+    private FileContent(Path file, ByteBuffer content) {
+        this.file = file;
+        this.content = content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Read the content of a file
+     *
+     * @param file the file
+     * @return the content
+     * @throws IOException if the file could not be read
+     */
+    public static FileContent read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAPPING_THRESHOLD) {
+                return new FileContent(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //Keep reading until the buffer is full or the file ends
+            }
+            buffer.flip();
+            return new FileContent(file, buffer);
+        }
+    }
+
+    /**
+     * @return the number of bytes read from the file
+     */
+    public int size() {
+        return content.limit();
+    }
+
+    /**
+     * @return a new stream of the content. Each stream reads the content from the start
+     */
+    public InputStream newInputStream() {
+        return new BufferInputStream(content.duplicate());
+    }
+
+    /**
+     * @return a new input source of the content, with the file as system id, so errors are reported for the file
+     */
+    public InputSource newInputSource() {
+        InputSource source = new InputSource(newInputStream());
+        source.setSystemId(file.toUri().toString());
+        return source;
+    }
+
+    /**
+     * Get the {@link XmlDigest} of the content. It is calculated the first time it is needed, and then remembered.
+     *
+     * @return the digest
+     * @throws SAXException if the content is not well formed xml
+     * @throws IOException  if the content could not be read
+     */
+    public String getDigest() throws IOException, SAXException {
+        String result = digest;
+        if (result == null) {
+            result = XmlDigest.digest(newInputSource());
+            digest = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the digest, if it have been calculated, otherwise null
+     */
+    public String getDigestIfKnown() {
+        return digest;
+    }
+
+    /**
+     * Stream over a byte buffer. Not thread safe, but each stream have its own view of the buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
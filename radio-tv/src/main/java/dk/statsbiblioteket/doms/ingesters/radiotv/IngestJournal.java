@@ -0,0 +1,315 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append only journal of how far the ingest of each file have come.
+ * <p>Each time a file reaches a new {@link Stage}, a line is appended to the journal file. The line holds the stage,
+ * the size and last modified time of the file when it was discovered, the pids involved so far, and the file name.
+ * When the journal is opened, it is replayed to find the latest stage of each file, and rewritten with only these
+ * lines. Files that have been archived or have failed, and are no longer in the hot folder, are left out, as there is
+ * nothing to resume for them. They are forgotten in memory too, as soon as they are recorded as done. So the journal
+ * holds the files in the hot folder, rather than every file ever seen.</p>
+ * <p>With the journal, a restarted ingester can pick up each file where it was, instead of handling all files in the
+ * hot folder as new.</p>
+ */
+public class IngestJournal implements Closeable {
+
+    /**
+     * The name of the journal file in the state folder
+     */
+    public static final String JOURNAL_FILE_NAME = "ingest.journal";
+
+    private static final String SEPARATOR = "\t";
+    private static final String NO_PIDS = "-";
+
+    /**
+     * The stages of the ingest of a file, in the order they are reached
+     */
+    public enum Stage {
+        /**
+         * The file have been seen in the hot folder
+         */
+        DISCOVERED,
+        /**
+         * The file is being parsed and validated
+         */
+        PARSING,
+        /**
+         * The program is being ingested. When the pids are recorded, the objects have been written, but not published
+         */
+        INGESTING,
+        /**
+         * The objects have been published, but the file have not been moved to the processed folder
+         */
+        PUBLISHED,
+        /**
+         * The file have been moved to the processed folder
+         */
+        ARCHIVED,
+        /**
+         * The ingest failed, and the file have been moved to the failed folder
+         */
+        FAILED
+    }
+
+    /**
+     * The latest stage of a file
+     */
+    public static final class Entry {
+        private final Stage stage;
+        private final long size;
+        private final long lastModified;
+        private final List<String> pids;
+
+        private Entry(Stage stage, long size, long lastModified, List<String> pids) {
+            this.stage = stage;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.pids = Collections.unmodifiableList(new ArrayList<>(pids));
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return the pids recorded for the file, in the order they were created
+         */
+        public List<String> getPids() {
+            return pids;
+        }
+
+        /**
+         * Check if the entry concerns the given version of the file, i.e. if the size and last modified time are the
+         * same as when the file was discovered.
+         *
+         * @param attributes the current attributes of the file
+         * @return true if the file is unchanged since it was discovered
+         */
+        public boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                   "stage=" + stage +
+                   ", size=" + size +
+                   ", lastModified=" + lastModified +
+                   ", pids=" + pids +
+                   '}';
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The latest entry for each file name. Guarded by this.
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * The writer for the journal file, or null if the journal is only kept in memory. Guarded by this.
+     */
+    private final BufferedWriter writer;
+
+    /**
+     * The folder the journal is kept in, or null if the journal is only kept in memory
+     */
+    private final Path stateFolder;
+
+    /**
+     * Create a journal that is only kept in memory, and thus forgotten when the ingester stops
+     */
+    public IngestJournal() {
+        this.writer = null;
+        this.stateFolder = null;
+    }
+
+    /**
+     * Open the journal in the given folder. The existing journal, if any, is replayed and compacted.
+     *
+     * @param stateFolder the folder to keep the journal in
+     * @param hotFolder   the folder of the files journaled. Files archived or failed that are no longer here are
+     *                    forgotten
+     * @throws IOException if the journal could not be read or written
+     */
+    public IngestJournal(Path stateFolder, Path hotFolder) throws IOException {
+        this.stateFolder = stateFolder;
+        Path journalFile = stateFolder.resolve(JOURNAL_FILE_NAME);
+        if (Files.exists(journalFile)) {
+            replay(journalFile);
+            forgetDone(hotFolder);
+        }
+        compact(journalFile);
+        this.writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                                              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        log.info("Opened ingest journal {} with {} files", journalFile, entries.size());
+    }
+
+    /**
+     * @return the folder the journal is kept in, where other state that should survive a restart can be kept too, or
+     * null if the journal is only kept in memory
+     */
+    public Path getStateFolder() {
+        return stateFolder;
+    }
+
+    /**
+     * Get the latest entry for a file
+     *
+     * @param file the file
+     * @return the entry, or null if the file is not in the journal
+     */
+    public synchronized Entry get(Path file) {
+        return entries.get(file.getFileName().toString());
+    }
+
+    /**
+     * Record that a file have been discovered. Any earlier entry for the file is replaced.
+     *
+     * @param file       the file
+     * @param attributes the attributes of the file, identifying this version of it
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void discovered(Path file, BasicFileAttributes attributes) throws IOException {
+        write(file.getFileName().toString(),
+              new Entry(Stage.DISCOVERED, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                        Collections.emptyList()));
+    }
+
+    /**
+     * Record that a discovered file have reached a new stage. A file that is archived or failed, and no longer in the
+     * hot folder, is forgotten, as nothing is left to resume for it.
+     *
+     * @param file  the file
+     * @param stage the stage reached
+     * @param pids  the pids involved in the ingest so far
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void record(Path file, Stage stage, List<String> pids) throws IOException {
+        String filename = file.getFileName().toString();
+        Entry previous = entries.get(filename);
+        if (previous == null) {
+            throw new IllegalStateException("File " + filename + " must be discovered before it reaches " + stage);
+        }
+        write(filename, new Entry(stage, previous.size, previous.lastModified, pids));
+        if (isDone(stage) && !Files.exists(file)) {
+            entries.remove(filename);
+        }
+    }
+
+    /**
+     * @return the number of files in the journal
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void write(String filename, Entry entry) throws IOException {
+        entries.put(filename, entry);
+        if (writer != null) {
+            writer.write(format(filename, entry));
+            writer.newLine();
+            //Flush each line, so the journal survives if the ingester is killed
+            writer.flush();
+        }
+    }
+
+    /**
+     * Read the journal, keeping the latest entry for each file
+     *
+     * @param journalFile the journal file
+     * @throws IOException if the journal could not be read
+     */
+    private void replay(Path journalFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 5);
+                if (fields.length != 5) {
+                    //Most likely the last line, written when the ingester was killed
+                    log.warn("Ignoring malformed line '{}' in ingest journal {}", line, journalFile);
+                    continue;
+                }
+                try {
+                    Stage stage = Stage.valueOf(fields[0]);
+                    long size = Long.parseLong(fields[1]);
+                    long lastModified = Long.parseLong(fields[2]);
+                    List<String> pids = NO_PIDS.equals(fields[3])
+                                        ? Collections.emptyList()
+                                        : Arrays.asList(fields[3].split(","));
+                    entries.put(fields[4], new Entry(stage, size, lastModified, pids));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring malformed line '{}' in ingest journal {}", line, journalFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the files that have been archived or have failed, and are no longer in the hot folder. Nothing is left
+     * to resume for them, and should a file of the same name turn up again, it is a new file.
+     *
+     * @param hotFolder the folder of the files journaled
+     */
+    private void forgetDone(Path hotFolder) {
+        int before = entries.size();
+        entries.entrySet().removeIf(entry -> isDone(entry.getValue().stage)
+                                             && !Files.exists(hotFolder.resolve(entry.getKey())));
+        log.debug("Forgot {} files that are done and no longer in {}", before - entries.size(), hotFolder);
+    }
+
+    private static boolean isDone(Stage stage) {
+        return stage == Stage.ARCHIVED || stage == Stage.FAILED;
+    }
+
+    /**
+     * Write the journal anew, with only the latest entry for each file
+     *
+     * @param journalFile the journal file
+     * @throws IOException if the journal could not be written
+     */
+    private void compact(Path journalFile) throws IOException {
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter compacted = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                compacted.write(format(entry.getKey(), entry.getValue()));
+                compacted.newLine();
+            }
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String format(String filename, Entry entry) {
+        String pids = entry.pids.isEmpty() ? NO_PIDS : String.join(",", entry.pids);
+        return entry.stage + SEPARATOR + entry.size + SEPARATOR + entry.lastModified + SEPARATOR + pids + SEPARATOR +
+               filename;
+    }
+}
@@ -85,6 +85,8 @@ public class Ingester {
 
         Path stopFolder = parseStopfolder(cmd);
 
+        Path stateFolder = parseStatefolder(cmd);
+
         Path preIngestFileSchemaFile = parseSchema(cmd);
 
         URL domsAPIWSLocation = parseWSDL(cmd);
@@ -99,13 +101,34 @@ public class Ingester {
 
         int numThreads = parseNumThreads(cmd);
 
+        long quietPeriod = parseQuietPeriod(cmd);
+
         int maxFails = parseMaxFails(cmd);
 
         boolean check = parseCheck(cmd);
 
-        startScanner(hotFolder, coldFolder, lukewarmFolder, stopFolder, preIngestFileSchemaFile,
+        ProgramPidCache.Mode programPidCache = parseProgramPidCache(cmd);
+
+        int maxDomsRequests = parseMaxDomsRequests(cmd);
+
+        startScanner(hotFolder, coldFolder, lukewarmFolder, stopFolder, stateFolder, preIngestFileSchemaFile,
                      domsAPIWSLocation,
-                     username, password, overwrite, numThreads, threadWaitTime, maxFails, check);
+                     username, password, overwrite, numThreads, threadWaitTime, quietPeriod, maxFails, check,
+                     programPidCache, maxDomsRequests);
+    }
+
+    static int parseMaxDomsRequests(CommandLine cmd) {
+        int maxDomsRequests = Integer.parseInt(
+                cmd.getOptionValue("maxdomsrequests", Integer.toString(AsyncDomsClient.DEFAULT_MAX_IN_FLIGHT)));
+        log.info("maxdomsrequests = {}", maxDomsRequests);
+        return maxDomsRequests;
+    }
+
+    static ProgramPidCache.Mode parseProgramPidCache(CommandLine cmd) {
+        ProgramPidCache.Mode programPidCache = ProgramPidCache.Mode.valueOf(
+                cmd.getOptionValue("programpidcache", ProgramPidCache.Mode.POSITIVE.name()).toUpperCase());
+        log.info("programpidcache = {}", programPidCache);
+        return programPidCache;
     }
 
     private static boolean parseCheck(CommandLine cmd) {
@@ -127,6 +150,12 @@ public class Ingester {
         return threadWaitTime;
     }
 
+    static long parseQuietPeriod(CommandLine cmd) {
+        long quietPeriod = Long.parseLong(cmd.getOptionValue("quietperiod", "2000"));
+        log.info("quietperiod = {}", quietPeriod);
+        return quietPeriod;
+    }
+
     static int parseNumThreads(CommandLine cmd) {
         int numThreads = Integer.parseInt(cmd.getOptionValue("numthreads", "4"));
         log.info("numthreads = {}", numThreads);
@@ -152,6 +181,13 @@ public class Ingester {
         return stopFolder;
     }
 
+    static Path parseStatefolder(CommandLine cmd) throws IOException {
+        Path stateFolder = Paths.get(cmd.getOptionValue("statefolder", "ingestState"));
+        log.info("stateFolder = {}", stateFolder);
+        Files.createDirectories(stateFolder);
+        return stateFolder;
+    }
+
     static Path parseColdfolder(CommandLine cmd) throws IOException {
         Path coldFolder = Paths.get(cmd.getOptionValue("coldfolder", "processedFiles"));
         log.info("coldFolder = {}", coldFolder);
@@ -214,6 +250,7 @@ public class Ingester {
         options.addOption(Option.builder().longOpt("lukefolder").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("coldfolder").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("stopfolder").hasArg().valueSeparator().build());
+        options.addOption(Option.builder().longOpt("statefolder").hasArg().valueSeparator().build());
 
         options.addOption(Option.builder().longOpt("wsdl").hasArg().type(URL.class).valueSeparator().required().build());
         options.addOption(Option.builder().longOpt("username").hasArg().valueSeparator().build());
@@ -222,9 +259,12 @@ public class Ingester {
         options.addOption(Option.builder().longOpt("preingestschema").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("overwrite").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("check").hasArg().valueSeparator().build());
+        options.addOption(Option.builder().longOpt("programpidcache").hasArg().valueSeparator().build());
 
         options.addOption(Option.builder().longOpt("numthreads").hasArg().valueSeparator().build());
+        options.addOption(Option.builder().longOpt("maxdomsrequests").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("threadwaittime").hasArg().valueSeparator().build());
+        options.addOption(Option.builder().longOpt("quietperiod").hasArg().valueSeparator().build());
         options.addOption(Option.builder().longOpt("maxFails").hasArg().valueSeparator().build());
 
 
@@ -236,6 +276,7 @@ public class Ingester {
                                      Path coldFolder,
                                      Path lukewarmFolder,
                                      Path stopFolder,
+                                     Path stateFolder,
                                      Path preIngestFileSchemaFile,
                                      URL domsAPIWSLocation,
                                      String username,
@@ -243,8 +284,11 @@ public class Ingester {
                                      boolean overwrite,
                                      int numthreads,
                                      long threadWaitTime,
+                                     long quietPeriod,
                                      int maxFails,
-                                     boolean check)
+                                     boolean check,
+                                     ProgramPidCache.Mode programPidCacheMode,
+                                     int maxDomsRequests)
             throws SAXException, IOException, InterruptedException {
 
 
@@ -254,11 +298,19 @@ public class Ingester {
         DomsWSClient domsClient = new DomsWSClientImpl();
         domsClient.setCredentials(domsAPIWSLocation, username, password);
 
+        IngestJournal journal = new IngestJournal(stateFolder, hotFolder);
+
+        ProgramPidCache programPids = new ProgramPidCache(programPidCacheMode);
+        programPids.seedInBackground(coldFolder,
+                                     stateFolder.resolve(RecordCreator.KNOWN_IDENTIFIERS_SNAPSHOT_FILE_NAME));
+
         final FolderWatcherClient radioTVHotFolderClient = new RadioTVFolderWatcherClient(
-                domsClient, lukewarmFolder, coldFolder, preIngestFileSchema, overwrite, maxFails, check);
+                domsClient, lukewarmFolder, coldFolder, preIngestFileSchema, overwrite, maxFails, check, journal,
+                programPids, maxDomsRequests);
 
         final FolderWatcher folderWatcher = new FolderWatcher(hotFolder, threadWaitTime, radioTVHotFolderClient,
-                                                              numthreads, stopFolder);
+                                                              numthreads, stopFolder,
+                                                              FolderWatcher.DEFAULT_MAX_QUEUED_EVENTS, quietPeriod);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -0,0 +1,316 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache in front of a lookup in DOMS. Holds at most a given number of entries, evicting the least recently used.
+ * <p>Found values are remembered for a while. Lookups that failed with {@link NoObjectFound} are remembered for a
+ * shorter while, as the object could be created, and the same NoObjectFound is thrown again for them. Other failures
+ * are not remembered.</p>
+ * <p>Counts hits and misses, see {@link #toString()}. Thread safe, but two threads missing the same key at the same
+ * time will both do the lookup.</p>
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class LookupCache<K, V> {
+
+    /**
+     * A lookup in DOMS
+     */
+    @FunctionalInterface
+    public interface Lookup<K, V> {
+        V lookup(K key) throws NoObjectFound, ServerOperationFailed;
+    }
+
+    private final String name;
+    private final long timeToLiveNS;
+    private final long notFoundTimeToLiveNS;
+    private final LongSupplier clock;
+
+    private final Map<K, Cached<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong notFoundHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong snapshotHits = new AtomicLong();
+
+    /**
+     * Values remembered by an earlier cache, or null
+     */
+    private volatile Snapshot<K, V> snapshot;
+    /**
+     * The keys and values invalidated since the snapshot was written, which must not be found there. Few, as only
+     * failed ingests invalidate anything.
+     */
+    private final Set<K> invalidatedKeys = ConcurrentHashMap.newKeySet();
+    private final Set<V> invalidatedValues = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a cache
+     *
+     * @param name                 the name of the cache, for the statistics
+     * @param maxEntries           the max number of entries to hold
+     * @param timeToLiveMS         how long found values are remembered
+     * @param notFoundTimeToLiveMS how long values that were not found are remembered
+     */
+    public LookupCache(String name, int maxEntries, long timeToLiveMS, long notFoundTimeToLiveMS) {
+        this(name, maxEntries, timeToLiveMS, notFoundTimeToLiveMS, System::nanoTime);
+    }
+
+    LookupCache(String name, final int maxEntries, long timeToLiveMS, long notFoundTimeToLiveMS, LongSupplier clock) {
+        this.name = name;
+        this.timeToLiveNS = TimeUnit.MILLISECONDS.toNanos(timeToLiveMS);
+        this.notFoundTimeToLiveNS = TimeUnit.MILLISECONDS.toNanos(notFoundTimeToLiveMS);
+        this.clock = clock;
+        this.entries = new LinkedHashMap<K, Cached<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value of a key, from the cache if remembered, otherwise by the lookup
+     *
+     * @param key    the key
+     * @param lookup the lookup to use if the key is not remembered
+     * @return the value
+     * @throws NoObjectFound         if the lookup found nothing, now or recently
+     * @throws ServerOperationFailed if the lookup failed
+     */
+    public V get(K key, Lookup<K, V> lookup) throws NoObjectFound, ServerOperationFailed {
+        Cached<V> cached = cached(key);
+        if (cached != null) {
+            if (cached.notFound != null) {
+                notFoundHits.incrementAndGet();
+                throw cached.notFound;
+            }
+            hits.incrementAndGet();
+            return cached.value;
+        }
+
+        misses.incrementAndGet();
+        try {
+            V value = lookup.lookup(key);
+            remember(key, new Cached<>(value, null, clock.getAsLong() + timeToLiveNS));
+            return value;
+        } catch (NoObjectFound e) {
+            remember(key, new Cached<V>(null, e, clock.getAsLong() + notFoundTimeToLiveNS));
+            throw e;
+        }
+    }
+
+    /**
+     * Get the value of a key, if it is remembered. Values not found are not returned, as there is no value.
+     *
+     * @param key the key
+     * @return the value, or null if not remembered
+     */
+    public V getIfPresent(K key) {
+        Cached<V> cached = cached(key);
+        if (cached != null && cached.notFound == null) {
+            hits.incrementAndGet();
+            return cached.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Get what is remembered for a key, from the cache or the snapshot
+     *
+     * @param key the key
+     * @return the remembered value or not found, or null if nothing is remembered
+     */
+    private Cached<V> cached(K key) {
+        Cached<V> cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+            if (cached != null && cached.expires - clock.getAsLong() <= 0) {
+                entries.remove(key);
+                cached = null;
+            }
+        }
+        Snapshot<K, V> currentSnapshot = snapshot;
+        if (cached == null && currentSnapshot != null && !invalidatedKeys.contains(key)) {
+            Expiring<V> stored = currentSnapshot.get(key);
+            if (stored != null && !invalidatedValues.contains(stored.value)) {
+                long remainingMS = stored.expiresAtMS - System.currentTimeMillis();
+                if (remainingMS > 0) {
+                    snapshotHits.incrementAndGet();
+                    cached = new Cached<>(stored.value, null,
+                                          clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(remainingMS));
+                    remember(key, cached);
+                }
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Remember the value of a key, which is known without a lookup
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        remember(key, new Cached<>(value, null, clock.getAsLong() + timeToLiveNS));
+    }
+
+    /**
+     * Forget a key, as the value have changed
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        if (snapshot != null) {
+            //The snapshot cannot be changed, so remember not to find the old value there
+            invalidatedKeys.add(key);
+        }
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Forget all keys with one of the given values, as the values are no longer valid
+     *
+     * @param values the values
+     */
+    public void invalidateValues(Collection<V> values) {
+        if (snapshot != null) {
+            invalidatedValues.addAll(values);
+        }
+        synchronized (entries) {
+            entries.values().removeIf(cached -> cached.value != null && values.contains(cached.value));
+        }
+    }
+
+    /**
+     * Use a snapshot of an earlier cache for keys not in this cache. The values found there are remembered in this
+     * cache until they expire as they would have in the earlier cache.
+     *
+     * @param snapshot the snapshot
+     */
+    void useSnapshot(Snapshot<K, V> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the values found, that have not expired, with the wall clock time they expire
+     */
+    Map<K, Expiring<V>> liveEntries() {
+        Map<K, Expiring<V>> live = new LinkedHashMap<>();
+        long now = clock.getAsLong();
+        long nowMS = System.currentTimeMillis();
+        synchronized (entries) {
+            for (Map.Entry<K, Cached<V>> entry : entries.entrySet()) {
+                Cached<V> cached = entry.getValue();
+                long remaining = cached.expires - now;
+                if (cached.notFound == null && cached.value != null && remaining > 0) {
+                    live.put(entry.getKey(),
+                             new Expiring<>(cached.value, nowMS + TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+            }
+        }
+        return live;
+    }
+
+    private void remember(K key, Cached<V> cached) {
+        synchronized (entries) {
+            entries.put(key, cached);
+        }
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered by the cache, including those answered with NoObjectFound
+     */
+    public long getHits() {
+        return hits.get() + notFoundHits.get();
+    }
+
+    /**
+     * @return the number of lookups not answered by the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LookupCache{" +
+               "name='" + name + '\'' +
+               ", size=" + size() +
+               ", hits=" + hits +
+               ", notFoundHits=" + notFoundHits +
+               ", misses=" + misses +
+               ", evictions=" + evictions +
+               ", snapshotHits=" + snapshotHits +
+               '}';
+    }
+
+    /**
+     * Values remembered by an earlier cache
+     */
+    interface Snapshot<K, V> {
+        /**
+         * @param key the key
+         * @return the value of the key, or null if it is not in the snapshot
+         */
+        Expiring<V> get(K key);
+    }
+
+    /**
+     * A value and the wall clock time it expires, for values that outlive this cache
+     */
+    static final class Expiring<V> {
+        final V value;
+        final long expiresAtMS;
+
+        Expiring(V value, long expiresAtMS) {
+            this.value = value;
+            this.expiresAtMS = expiresAtMS;
+        }
+    }
+
+    /**
+     * A remembered value or NoObjectFound, and the time it expires
+     */
+    private static final class Cached<V> {
+        private final V value;
+        private final NoObjectFound notFound;
+        private final long expires;
+
+        private Cached(V value, NoObjectFound notFound, long expires) {
+            this.value = value;
+            this.notFound = notFound;
+            this.expires = expires;
+        }
+    }
+}
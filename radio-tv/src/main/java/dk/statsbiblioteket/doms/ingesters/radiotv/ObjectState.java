@@ -0,0 +1,118 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.relations.ObjectRelation;
+import org.w3c.dom.Document;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What have been read of an existing program object in DOMS during one ingest of it. The check reads the object, and
+ * the overwrite then reuses what was read, to skip reading it again, and to skip writing what is already there.
+ * <p>Thread safe, as the reads are done concurrently.</p>
+ */
+final class ObjectState {
+
+    /**
+     * The digests of the datastreams in DOMS, by datastream id
+     */
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    private volatile String label;
+
+    private volatile Document dcDataStream;
+
+    private volatile Map<String, List<ObjectRelation>> fileRelations;
+
+    private volatile Set<String> filePids;
+
+    /**
+     * @param datastreamID the id of the datastream
+     * @return the {@link XmlDigest} of the datastream in DOMS, or null if not read
+     */
+    String getDigest(String datastreamID) {
+        return digests.get(datastreamID);
+    }
+
+    /**
+     * @param datastreamID the id of the datastream
+     * @param digest       the {@link XmlDigest} of the datastream in DOMS
+     */
+    void setDigest(String datastreamID, String digest) {
+        digests.put(datastreamID, digest);
+    }
+
+    /**
+     * Take what was last written to the object, as recorded in the program state store, as what DOMS has
+     *
+     * @param stored the stored state of the object
+     * @param title  the title of the program to write, which is taken as the label if the stored title matches
+     */
+    void useStored(ProgramStateStore.State stored, String title) {
+        for (String datastreamID : new String[]{RecordCreator.PROGRAM_PBCORE_DS_ID, RecordCreator.RITZAU_ORIGINAL_DS_ID,
+                                                RecordCreator.GALLUP_ORIGINAL_DS_ID,
+                                                RecordCreator.PROGRAM_BROADCAST_DS_ID}) {
+            String digest = stored.getDigest(datastreamID);
+            if (digest != null) {
+                digests.put(datastreamID, digest);
+            }
+        }
+        if (title != null && stored.hasTitle(title)) {
+            label = title;
+        }
+        filePids = stored.getFilePids();
+    }
+
+    /**
+     * @return the label of the object in DOMS, or null if not known
+     */
+    String getLabel() {
+        return label;
+    }
+
+    /**
+     * @param label the label of the object in DOMS
+     */
+    void setLabel(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return the DC datastream of the object, or null if not read. It is only used by the thread that gets it.
+     */
+    Document getDcDataStream() {
+        return dcDataStream;
+    }
+
+    /**
+     * @param dcDataStream the DC datastream of the object. It must not be used by the caller afterwards.
+     */
+    void setDcDataStream(Document dcDataStream) {
+        this.dcDataStream = dcDataStream;
+    }
+
+    /**
+     * @return the file relations of the object in DOMS, by the pid of the file, or null if not listed
+     */
+    Map<String, List<ObjectRelation>> getFileRelations() {
+        return fileRelations;
+    }
+
+    /**
+     * @param fileRelations the file relations of the object in DOMS, by the pid of the file. They must not be changed
+     *                      afterwards.
+     */
+    void setFileRelations(Map<String, List<ObjectRelation>> fileRelations) {
+        this.fileRelations = fileRelations;
+    }
+
+    /**
+     * @return the pids of the files the object is related to, as recorded in the program state store, or null if not
+     * known
+     */
+    Set<String> getFilePids() {
+        return filePids;
+    }
+}
@@ -0,0 +1,388 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Remembers the pids of program objects by their old identifiers, so finding the program object of a file does not
+ * need a resource index query in DOMS each time.
+ * <p>What is remembered depends on the {@link Mode}, as a remembered answer can be wrong if something else than this
+ * ingester changes the programs in DOMS.</p>
+ */
+public class ProgramPidCache {
+
+    /**
+     * How much to trust what is remembered
+     */
+    public enum Mode {
+        /**
+         * Nothing is remembered, DOMS is always asked. Safe whatever else changes DOMS.
+         */
+        NONE,
+        /**
+         * The pids of found and created programs are remembered for a while. Safe as long as nothing else deletes or
+         * merges programs, as an old identifier then keeps pointing to the same program.
+         */
+        POSITIVE,
+        /**
+         * As POSITIVE, and DOMS is not asked for old identifiers that a bloom filter of all known identifiers says
+         * are definitely absent. The filter is seeded from the processed folder at startup, and DOMS is asked for
+         * all identifiers until that is done. Only safe if this ingester is the only one creating programs, and the
+         * processed folder holds all the files it ever ingested.
+         */
+        EXCLUSIVE
+    }
+
+    public static final int DEFAULT_SIZE = 100000;
+    public static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_EXPECTED_PROGRAMS = 10000000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * A lookup of the pid of the program with an old identifier in DOMS
+     */
+    @FunctionalInterface
+    public interface Lookup {
+        /**
+         * @param oldIdentifier the old identifier
+         * @return the pid, or null if no program have the identifier
+         * @throws ServerOperationFailed if the lookup failed
+         */
+        String lookup(String oldIdentifier) throws ServerOperationFailed;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ProgramPidCache.class);
+
+    private final Mode mode;
+    private final LookupCache<String, String> pids;
+    private final BloomFilter knownIdentifiers;
+    /**
+     * Whether the bloom filter holds the identifiers of all ingested files, so it can be trusted
+     */
+    private volatile boolean seeded;
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Create a cache with the default size and expiry
+     *
+     * @param mode what to remember
+     */
+    public ProgramPidCache(Mode mode) {
+        this(mode, DEFAULT_SIZE, DEFAULT_TTL_MS, DEFAULT_EXPECTED_PROGRAMS, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param mode              what to remember
+     * @param size              the max number of pids to remember
+     * @param timeToLiveMS      how long to remember a pid
+     * @param expectedPrograms  the expected number of programs in DOMS, to size the bloom filter
+     * @param falsePositiveRate the wanted rate of unneeded DOMS queries for new programs
+     */
+    public ProgramPidCache(Mode mode, int size, long timeToLiveMS, long expectedPrograms, double falsePositiveRate) {
+        this.mode = mode;
+        this.pids = new LookupCache<>("programPids", size, timeToLiveMS, 0);
+        this.knownIdentifiers = mode == Mode.EXCLUSIVE ? new BloomFilter(expectedPrograms, falsePositiveRate) : null;
+    }
+
+    /**
+     * Find the pid of the program with an old identifier
+     *
+     * @param oldIdentifier the old identifier
+     * @param lookup        the lookup in DOMS, used if the answer is not known
+     * @return the pid, or null if no program have the identifier
+     * @throws ServerOperationFailed if the lookup failed
+     */
+    public String get(String oldIdentifier, Lookup lookup) throws ServerOperationFailed {
+        if (mode == Mode.NONE) {
+            return lookup.lookup(oldIdentifier);
+        }
+        String pid = pids.getIfPresent(oldIdentifier);
+        if (pid != null) {
+            return pid;
+        }
+        if (isKnownAbsent(oldIdentifier)) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        pid = lookup.lookup(oldIdentifier);
+        if (pid != null) {
+            known(oldIdentifier, pid);
+        }
+        return pid;
+    }
+
+    /**
+     * Find the pid of the program with an old identifier, without waiting for DOMS
+     *
+     * @param oldIdentifier the old identifier
+     * @param lookup        the lookup in DOMS, started if the answer is not known
+     * @return the pid, or null if no program have the identifier
+     */
+    public CompletableFuture<String> getAsync(String oldIdentifier,
+                                              Function<String, CompletableFuture<String>> lookup) {
+        if (mode == Mode.NONE) {
+            return lookup.apply(oldIdentifier);
+        }
+        String pid = pids.getIfPresent(oldIdentifier);
+        if (pid != null) {
+            return CompletableFuture.completedFuture(pid);
+        }
+        if (isKnownAbsent(oldIdentifier)) {
+            skipped.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+        return lookup.apply(oldIdentifier).thenApply(found -> {
+            if (found != null) {
+                known(oldIdentifier, found);
+            }
+            return found;
+        });
+    }
+
+    /**
+     * Remember that a program was created with the given old identifiers
+     *
+     * @param oldIdentifiers the old identifiers
+     * @param pid            the pid of the program
+     */
+    public void created(List<String> oldIdentifiers, String pid) {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        for (String oldIdentifier : oldIdentifiers) {
+            known(oldIdentifier, pid);
+        }
+    }
+
+    /**
+     * Remember the old identifiers of a program being ingested, as seeding would once its file is in the processed
+     * folder. The lookups stop at the first identifier found, so the others are not always known otherwise.
+     *
+     * @param oldIdentifiers the old identifiers
+     */
+    public void ingested(List<String> oldIdentifiers) {
+        if (knownIdentifiers != null) {
+            for (String oldIdentifier : oldIdentifiers) {
+                knownIdentifiers.add(oldIdentifier);
+            }
+        }
+    }
+
+    /**
+     * Forget the given programs, as they have been deleted
+     *
+     * @param deletedPids the pids of the deleted objects
+     */
+    public void deleted(Collection<String> deletedPids) {
+        if (mode != Mode.NONE && !deletedPids.isEmpty()) {
+            pids.invalidateValues(deletedPids);
+        }
+    }
+
+    /**
+     * Seed the bloom filter with the old identifiers of the programs in a folder of ingested files. Does nothing
+     * unless the mode is {@link Mode#EXCLUSIVE}.
+     *
+     * @param processedFolder the folder of ingested files
+     * @throws IOException if the folder could not be read
+     */
+    public void seed(Path processedFolder) throws IOException {
+        seed(processedFolder, null);
+    }
+
+    /**
+     * Seed the bloom filter in a background thread, see {@link #seed(Path, Path)}. DOMS is asked for all identifiers
+     * until the seeding is done, so the ingest can start at once.
+     *
+     * @param processedFolder the folder of ingested files
+     * @param snapshotFile    the snapshot of the known identifiers written when the last ingester stopped
+     * @return the seeding, done when the bloom filter is used
+     */
+    public CompletableFuture<Void> seedInBackground(Path processedFolder, Path snapshotFile) {
+        CompletableFuture<Void> seeding = new CompletableFuture<>();
+        if (knownIdentifiers == null) {
+            seeding.complete(null);
+            return seeding;
+        }
+        Thread seeder = new Thread(() -> {
+            try {
+                seed(processedFolder, snapshotFile);
+                seeding.complete(null);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to seed known old identifiers from {}, so DOMS is asked for all of them",
+                         processedFolder, e);
+                seeding.completeExceptionally(e);
+            }
+        }, "SeedKnownIdentifiers");
+        seeder.setDaemon(true);
+        seeder.start();
+        return seeding;
+    }
+
+    /**
+     * Seed the bloom filter with the known identifiers written when the last ingester stopped, and the old
+     * identifiers of the programs in the files of a folder of ingested files that are newer than that. Without a
+     * snapshot, all files are read. Does nothing unless the mode is {@link Mode#EXCLUSIVE}.
+     * <p>The snapshot is deleted when read, as the files ingested from now on are not in it. A new one is written by
+     * {@link #writeKnownIdentifiers(Path)} when the ingester stops, so if it is killed, the next start reads all the
+     * files rather than trust a snapshot missing some.</p>
+     *
+     * @param processedFolder the folder of ingested files
+     * @param snapshotFile    the snapshot of the known identifiers, or null to read all files
+     * @throws IOException if the folder could not be read
+     */
+    public void seed(Path processedFolder, Path snapshotFile) throws IOException {
+        if (knownIdentifiers == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        FileTime since = useKnownIdentifiers(snapshotFile);
+        int files = 0;
+        SAXParser parser = newParser();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(processedFolder, "*.xml")) {
+            for (Path file : stream) {
+                try {
+                    if (since != null && Files.getLastModifiedTime(file).compareTo(since) < 0) {
+                        continue;
+                    }
+                    parser.reset();
+                    ProgramRecordExtractor extractor = new ProgramRecordExtractor();
+                    parser.parse(file.toFile(), extractor);
+                    for (String oldIdentifier : extractor.getRecord().getOldIdentifiers()) {
+                        knownIdentifiers.add(oldIdentifier);
+                    }
+                    files++;
+                } catch (SAXException | IOException e) {
+                    log.warn("Failed to read old identifiers from ingested file {}", file, e);
+                }
+            }
+        }
+        seeded = true;
+        log.info("Seeded known old identifiers from {} files in {} in {} ms", files, processedFolder,
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Add the known identifiers of a snapshot to the bloom filter, and delete the snapshot
+     *
+     * @param snapshotFile the snapshot file, or null
+     * @return the time the snapshot was written, or null if there was no snapshot to use
+     * @throws IOException if the snapshot could not be read or deleted
+     */
+    private FileTime useKnownIdentifiers(Path snapshotFile) throws IOException {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return null;
+        }
+        FileTime written = Files.getLastModifiedTime(snapshotFile);
+        boolean used = knownIdentifiers.addAll(snapshotFile);
+        Files.delete(snapshotFile);
+        if (!used) {
+            log.warn("Ignoring known identifiers snapshot {}, as it is not one this filter can use", snapshotFile);
+            return null;
+        }
+        log.info("Using known identifiers snapshot {} written {}", snapshotFile, written);
+        return written;
+    }
+
+    /**
+     * Write the known identifiers to a snapshot file, for the next cache to seed from. Does nothing unless the mode
+     * is {@link Mode#EXCLUSIVE} and the seeding is done, as the filter is otherwise missing identifiers.
+     *
+     * @param snapshotFile the snapshot file
+     * @throws IOException if the snapshot could not be written
+     */
+    void writeKnownIdentifiers(Path snapshotFile) throws IOException {
+        if (knownIdentifiers == null || !seeded) {
+            return;
+        }
+        knownIdentifiers.write(snapshotFile);
+        log.info("Wrote known identifiers to snapshot {}", snapshotFile);
+    }
+
+    private boolean isKnownAbsent(String oldIdentifier) {
+        return knownIdentifiers != null && seeded && !knownIdentifiers.mightContain(oldIdentifier);
+    }
+
+    /**
+     * Use the pids remembered in a snapshot written by an earlier cache, see {@link #writeSnapshot(Path)}. Does
+     * nothing if the mode is {@link Mode#NONE}.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot could not be read
+     */
+    void useSnapshot(Path file) throws IOException {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        CacheSnapshot snapshot = CacheSnapshot.open(file);
+        if (snapshot != null) {
+            pids.useSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Write the remembered pids to a snapshot file, for the next cache to use. Does nothing if the mode is
+     * {@link Mode#NONE}.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot could not be written
+     */
+    void writeSnapshot(Path file) throws IOException {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        CacheSnapshot.write(pids, file);
+    }
+
+    private void known(String oldIdentifier, String pid) {
+        pids.put(oldIdentifier, pid);
+        if (knownIdentifiers != null) {
+            knownIdentifiers.add(oldIdentifier);
+        }
+    }
+
+    private static SAXParser newParser() {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new RuntimeException(e);// will never be reached, but no matter
+        }
+    }
+
+    /**
+     * @return the mode of the cache
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramPidCache{" +
+               "mode=" + mode +
+               ", pids=" + pids +
+               ", skippedByBloomFilter=" + skipped +
+               '}';
+    }
+}
@@ -0,0 +1,110 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of a program export that are ingested in DOMS, read from the export in one pass by a
+ * {@link ProgramRecordExtractor}.
+ * <p>The datastreams are held as separate documents, ready to be sent to DOMS. The documents belong to the record, and
+ * must not be changed.</p>
+ */
+public final class ProgramRecord {
+
+    private final List<String> oldIdentifiers;
+    private final String title;
+    private final List<String> fileUrls;
+    private final Document pbcore;
+    private final Document ritzauOriginal;
+    private final Document gallupOriginal;
+    private final Document programBroadcast;
+
+    ProgramRecord(List<String> oldIdentifiers, String title, List<String> fileUrls, Document pbcore,
+                  Document ritzauOriginal, Document gallupOriginal, Document programBroadcast) {
+        this.oldIdentifiers = Collections.unmodifiableList(oldIdentifiers);
+        this.title = title;
+        this.fileUrls = Collections.unmodifiableList(fileUrls);
+        this.pbcore = pbcore;
+        this.ritzauOriginal = ritzauOriginal;
+        this.gallupOriginal = gallupOriginal;
+        this.programBroadcast = programBroadcast;
+    }
+
+    /**
+     * Read a record from a program export that is already parsed
+     *
+     * @param radioTVMetadata the program export
+     * @return the record
+     * @throws TransformerException if the document could not be read
+     */
+    public static ProgramRecord fromDocument(Document radioTVMetadata) throws TransformerException {
+        ProgramRecordExtractor extractor = new ProgramRecordExtractor();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(radioTVMetadata),
+                                                                   new SAXResult(extractor));
+        return extractor.getRecord();
+    }
+
+    /**
+     * @return the old identifiers of the program, i.e. the ritzau id followed by the tvmeter id, when present
+     */
+    public List<String> getOldIdentifiers() {
+        return oldIdentifiers;
+    }
+
+    /**
+     * @return the title of the program, or null if the export have no title of type "titel"
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the urls of the files with the recordings of the program
+     */
+    public List<String> getFileUrls() {
+        return fileUrls;
+    }
+
+    /**
+     * @return the PBCore description document, or null if missing
+     */
+    public Document getPbcore() {
+        return pbcore;
+    }
+
+    /**
+     * @return the ritzau original, or null if missing
+     */
+    public Document getRitzauOriginal() {
+        return ritzauOriginal;
+    }
+
+    /**
+     * @return the gallup original or tvmeter program, or null if missing
+     */
+    public Document getGallupOriginal() {
+        return gallupOriginal;
+    }
+
+    /**
+     * @return the program broadcast, or null if missing
+     */
+    public Document getProgramBroadcast() {
+        return programBroadcast;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramRecord{" +
+               "oldIdentifiers=" + oldIdentifiers +
+               ", title='" + title + '\'' +
+               ", fileUrls=" + fileUrls +
+               '}';
+    }
+}
@@ -0,0 +1,399 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import javax.xml.XMLConstants;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SAX handler that reads a program export in one pass, and builds the {@link ProgramRecord} of it.
+ * <p>Only the four datastream fragments are built as documents, the rest of the export is never held in memory. The
+ * fragments are selected as by the xpath expressions used before, i.e.</p>
+ * <ul>
+ * <li>{@code //program/pbcore/pbc:PBCoreDescriptionDocument}</li>
+ * <li>{@code //program/originals/ritzau:ritzau_original}</li>
+ * <li>{@code //program/originals/gallup:gallup_original|//program/originals/gallup:tvmeterProgram}</li>
+ * <li>{@code //program/pb:programBroadcast}</li>
+ * </ul>
+ * <p>and the first match of each is used. A handler can only be used for one document.</p>
+ */
+class ProgramRecordExtractor extends DefaultHandler implements LexicalHandler {
+
+    private static final String PROGRAM = "program";
+    private static final String PBCORE = "pbcore";
+    private static final String ORIGINALS = "originals";
+    private static final String FILE_URLS = "fileUrls";
+
+    private final List<String> fileUrls = new ArrayList<>();
+    private Document pbcore;
+    private Document ritzauOriginal;
+    private Document gallupOriginal;
+    private Document programBroadcast;
+
+    private String title;
+    private String ritzauIdentifier;
+    private String tvmeterIdentifier;
+    /**
+     * Only the first identifier of each source is used, even if it has no value
+     */
+    private boolean ritzauIdentifierFound = false;
+    private boolean tvmeterIdentifierFound = false;
+
+    /**
+     * The elements from the root to the current element, as namespace and local name
+     */
+    private final Deque<String[]> path = new ArrayDeque<>();
+    private final NamespaceSupport namespaces = new NamespaceSupport();
+    private boolean contextPushed = false;
+
+    /**
+     * The node of the fragment being built that new nodes are added to, or null if we are not in a fragment
+     */
+    private Node fragmentNode;
+    private int fragmentDepth;
+
+    /**
+     * The text of the element being read, or null if the element is not one we read the text of
+     */
+    private StringBuilder text;
+    private int textDepth;
+
+    /**
+     * The title and types of the pbcoreTitle, or the identifier and sources of the pbcoreIdentifier, being read
+     */
+    private String pendingValue;
+    private final Set<String> pendingTypes = new HashSet<>();
+
+    private boolean ended = false;
+
+    /**
+     * @return the record read
+     * @throws IllegalStateException if the document have not been read yet
+     */
+    ProgramRecord getRecord() {
+        if (!ended) {
+            throw new IllegalStateException("The program has not been read yet");
+        }
+        List<String> oldIdentifiers = new ArrayList<>();
+        if (ritzauIdentifier != null && !ritzauIdentifier.isEmpty()) {
+            oldIdentifiers.add(ritzauIdentifier);
+        }
+        if (tvmeterIdentifier != null && !tvmeterIdentifier.isEmpty()) {
+            oldIdentifiers.add(tvmeterIdentifier);
+        }
+        return new ProgramRecord(oldIdentifiers, title, fileUrls, pbcore, ritzauOriginal, gallupOriginal,
+                                 programBroadcast);
+    }
+
+    @Override
+    public void endDocument() {
+        ended = true;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        if (!contextPushed) {
+            namespaces.pushContext();
+            contextPushed = true;
+        }
+        namespaces.declarePrefix(prefix, uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (!contextPushed) {
+            namespaces.pushContext();
+        }
+        contextPushed = false;
+
+        if (fragmentNode != null) {
+            Element element = createElement(fragmentNode.getOwnerDocument(), uri, qName, attributes);
+            declareNamespaces(element, namespaces.getDeclaredPrefixes());
+            fragmentNode = fragmentNode.appendChild(element);
+        } else {
+            Document fragment = startFragment(uri, localName);
+            if (fragment != null) {
+                Element element = createElement(fragment, uri, qName, attributes);
+                declareNamespaces(element, namespaces.getPrefixes());
+                declareNamespace(element, "");
+                fragmentNode = fragment.appendChild(element);
+                fragmentDepth = path.size() + 1;
+            }
+        }
+
+        startValue(uri, localName);
+        path.push(new String[]{uri, localName});
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        path.pop();
+        endValue(uri, localName);
+
+        if (fragmentNode != null) {
+            if (path.size() < fragmentDepth) {
+                fragmentNode = null;
+            } else {
+                fragmentNode = fragmentNode.getParentNode();
+            }
+        }
+        namespaces.popContext();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (text != null) {
+            text.append(ch, start, length);
+        }
+        if (fragmentNode != null) {
+            Node last = fragmentNode.getLastChild();
+            String data = new String(ch, start, length);
+            if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+                ((Text) last).appendData(data);
+            } else {
+                fragmentNode.appendChild(fragmentNode.getOwnerDocument().createTextNode(data));
+            }
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+        if (fragmentNode != null) {
+            fragmentNode.appendChild(fragmentNode.getOwnerDocument().createProcessingInstruction(target, data));
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+        if (fragmentNode != null) {
+            fragmentNode.appendChild(fragmentNode.getOwnerDocument().createComment(new String(ch, start, length)));
+        }
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) {
+        //Never fetch external entities, they are not part of the program
+        return new InputSource(new StringReader(""));
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+    }
+
+    @Override
+    public void endDTD() {
+    }
+
+    @Override
+    public void startEntity(String name) {
+    }
+
+    @Override
+    public void endEntity(String name) {
+    }
+
+    @Override
+    public void startCDATA() {
+    }
+
+    @Override
+    public void endCDATA() {
+    }
+
+    /**
+     * Start a new fragment, if the element is the root of a fragment we have not seen yet
+     *
+     * @return the document of the new fragment, or null if the element does not start a fragment
+     */
+    private Document startFragment(String uri, String localName) {
+        if (isParent(PBCORE) && isGrandParent(PROGRAM) && is(uri, localName, ProgramXPaths.PBC_NAMESPACE,
+                                                              "PBCoreDescriptionDocument")) {
+            if (pbcore == null) {
+                pbcore = newDocument();
+                return pbcore;
+            }
+            return null;
+        }
+        if (isParent(ORIGINALS) && isGrandParent(PROGRAM)) {
+            if (is(uri, localName, ProgramXPaths.RITZAU_NAMESPACE, "ritzau_original")) {
+                if (ritzauOriginal == null) {
+                    ritzauOriginal = newDocument();
+                    return ritzauOriginal;
+                }
+                return null;
+            }
+            if (is(uri, localName, ProgramXPaths.GALLUP_NAMESPACE, "gallup_original")
+                || is(uri, localName, ProgramXPaths.GALLUP_NAMESPACE, "tvmeterProgram")) {
+                if (gallupOriginal == null) {
+                    gallupOriginal = newDocument();
+                    return gallupOriginal;
+                }
+                return null;
+            }
+        }
+        if (isParent(PROGRAM) && is(uri, localName, ProgramXPaths.PB_NAMESPACE, "programBroadcast")) {
+            if (programBroadcast == null) {
+                programBroadcast = newDocument();
+                return programBroadcast;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Start reading the text of the element, if it is one of the values we need
+     */
+    private void startValue(String uri, String localName) {
+        if (text != null) {
+            return;
+        }
+        boolean isValue = false;
+        if (isParent(FILE_URLS) && isGrandParent(PROGRAM) && is(uri, localName, "", "fileUrl")) {
+            isValue = true;
+        } else if (ProgramXPaths.PBC_NAMESPACE.equals(uri) && isParent(ProgramXPaths.PBC_NAMESPACE, "pbcoreTitle")) {
+            isValue = localName.equals("title") || localName.equals("titleType");
+        } else if (ProgramXPaths.PBC_NAMESPACE.equals(uri) && isParent(ProgramXPaths.PBC_NAMESPACE, "pbcoreIdentifier")
+                   && isInPBCoreDescription(1)) {
+            isValue = localName.equals("identifier") || localName.equals("identifierSource");
+        }
+        if (isValue) {
+            text = new StringBuilder();
+            textDepth = path.size();
+        }
+    }
+
+    /**
+     * Finish reading a value, when the element it is read from ends
+     */
+    private void endValue(String uri, String localName) {
+        if (text != null && path.size() == textDepth) {
+            String value = text.toString();
+            text = null;
+            if (localName.equals("fileUrl")) {
+                fileUrls.add(value);
+            } else if (localName.equals("title") || localName.equals("identifier")) {
+                if (pendingValue == null) {
+                    pendingValue = value;
+                }
+            } else {
+                pendingTypes.add(value);
+            }
+        } else if (ProgramXPaths.PBC_NAMESPACE.equals(uri) && localName.equals("pbcoreTitle")) {
+            if (title == null && pendingTypes.contains("titel")) {
+                title = pendingValue;
+            }
+            pendingValue = null;
+            pendingTypes.clear();
+        } else if (ProgramXPaths.PBC_NAMESPACE.equals(uri) && localName.equals("pbcoreIdentifier")
+                   && isInPBCoreDescription(0)) {
+            if (!ritzauIdentifierFound && pendingTypes.contains("id")) {
+                ritzauIdentifierFound = true;
+                ritzauIdentifier = pendingValue;
+            }
+            if (!tvmeterIdentifierFound && pendingTypes.contains("tvmeter")) {
+                tvmeterIdentifierFound = true;
+                tvmeterIdentifier = pendingValue;
+            }
+            pendingValue = null;
+            pendingTypes.clear();
+        }
+    }
+
+    /**
+     * @param levels the number of elements between the current element and the pbcore description
+     * @return true if the current element is that many levels below the pbcore description of the program
+     */
+    private boolean isInPBCoreDescription(int levels) {
+        if (path.size() < levels + 3) {
+            return false;
+        }
+        String[][] elements = path.toArray(new String[path.size()][]);
+        return is(elements[levels][0], elements[levels][1], ProgramXPaths.PBC_NAMESPACE, "PBCoreDescriptionDocument")
+               && is(elements[levels + 1][0], elements[levels + 1][1], "", PBCORE)
+               && is(elements[levels + 2][0], elements[levels + 2][1], "", PROGRAM);
+    }
+
+    private boolean isParent(String localName) {
+        return isParent("", localName);
+    }
+
+    private boolean isParent(String uri, String localName) {
+        String[] parent = path.peek();
+        return parent != null && is(parent[0], parent[1], uri, localName);
+    }
+
+    private boolean isGrandParent(String localName) {
+        if (path.size() < 2) {
+            return false;
+        }
+        String[] grandParent = path.toArray(new String[path.size()][])[1];
+        return is(grandParent[0], grandParent[1], "", localName);
+    }
+
+    private static boolean is(String uri, String localName, String expectedUri, String expectedLocalName) {
+        return expectedUri.equals(uri) && expectedLocalName.equals(localName);
+    }
+
+    private static Document newDocument() {
+        return ProgramXPaths.get().newDocument();
+    }
+
+    private static Element createElement(Document document, String uri, String qName, Attributes attributes) {
+        Element element = document.createElementNS(uri.isEmpty() ? null : uri, qName);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String attributeQName = attributes.getQName(i);
+            if (attributeQName.equals(XMLConstants.XMLNS_ATTRIBUTE)
+                || attributeQName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+                //Namespace declarations are added from the prefix mappings
+                continue;
+            }
+            String attributeUri = attributes.getURI(i);
+            element.setAttributeNS(attributeUri.isEmpty() ? null : attributeUri, attributeQName,
+                                   attributes.getValue(i));
+        }
+        return element;
+    }
+
+    /**
+     * Declare the given prefixes on the element, so the fragment keeps the namespaces it was written with
+     */
+    private void declareNamespaces(Element element, Enumeration<?> prefixes) {
+        while (prefixes.hasMoreElements()) {
+            declareNamespace(element, (String) prefixes.nextElement());
+        }
+    }
+
+    private void declareNamespace(Element element, String prefix) {
+        String uri = namespaces.getURI(prefix);
+        if (prefix.isEmpty()) {
+            //The default namespace is not among the prefixes, and is only declared if set, or if it is unset
+            if (uri != null && !uri.isEmpty()) {
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, uri);
+            }
+        } else if (uri != null && !prefix.equals(XMLConstants.XML_NS_PREFIX)) {
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                   XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, uri);
+        }
+    }
+}
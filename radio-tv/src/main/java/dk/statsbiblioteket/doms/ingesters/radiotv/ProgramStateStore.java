@@ -0,0 +1,285 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Store of what this ingester last wrote to each program object in DOMS, i.e. the digests of the title and the
+ * datastreams, and the pids of the files. With it, a program can be compared to what is in DOMS without reading
+ * DOMS.
+ * <p>The state of a program is recorded when its objects have been published, and the program is marked stale
+ * before it is changed, so a failed or interrupted ingest never leaves a state that DOMS does not have. Like the
+ * {@link IngestJournal}, the store is an append only file, which is replayed and compacted when the store is opened.
+ * </p>
+ * <p>The store only knows what this ingester wrote. If anything else changes the programs in DOMS, delete the store
+ * file.</p>
+ */
+public class ProgramStateStore implements Closeable {
+
+    /**
+     * The name of the store file in the state folder
+     */
+    public static final String STORE_FILE_NAME = "program.states";
+
+    private static final String SEPARATOR = "\t";
+    private static final String NO_PIDS = "-";
+    private static final String STATE = "STATE";
+    private static final String STALE = "STALE";
+
+    /**
+     * What was last written to a program object. Digests of datastreams are those of {@link XmlDigest}.
+     */
+    public static final class State {
+        private final byte[] titleDigest;
+        private final Map<String, byte[]> datastreamDigests;
+        private final Set<String> filePids;
+
+        /**
+         * @param title             the title of the program, i.e. the label of the object
+         * @param datastreamDigests the hex digests of the datastreams, by datastream id
+         * @param filePids          the pids of the files of the program
+         */
+        public State(String title, Map<String, String> datastreamDigests, Set<String> filePids) {
+            this(digestOf(title), toBytes(datastreamDigests), filePids);
+        }
+
+        private State(byte[] titleDigest, Map<String, byte[]> datastreamDigests, Set<String> filePids) {
+            this.titleDigest = titleDigest;
+            this.datastreamDigests = datastreamDigests;
+            this.filePids = Collections.unmodifiableSet(filePids);
+        }
+
+        /**
+         * @param title a title
+         * @return true if the title is the one written
+         */
+        public boolean hasTitle(String title) {
+            return Arrays.equals(titleDigest, digestOf(title));
+        }
+
+        /**
+         * @param datastreamID the id of the datastream
+         * @return the hex digest of the datastream written, or null if it is not known
+         */
+        public String getDigest(String datastreamID) {
+            byte[] digest = datastreamDigests.get(datastreamID);
+            return digest == null ? null : XmlDigest.toHex(digest);
+        }
+
+        /**
+         * @return the pids of the files the program was related to
+         */
+        public Set<String> getFilePids() {
+            return filePids;
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The state of each program by pid. Guarded by this.
+     */
+    private final Map<String, State> states = new HashMap<>();
+
+    /**
+     * The writer for the store file, or null if the store is only kept in memory. Guarded by this.
+     */
+    private final BufferedWriter writer;
+
+    /**
+     * Create a store that is only kept in memory, and thus forgotten when the ingester stops
+     */
+    public ProgramStateStore() {
+        this.writer = null;
+    }
+
+    /**
+     * Open the store in the given folder. The existing store, if any, is replayed and compacted.
+     *
+     * @param stateFolder the folder to keep the store in
+     * @throws IOException if the store could not be read or written
+     */
+    public ProgramStateStore(Path stateFolder) throws IOException {
+        Path storeFile = stateFolder.resolve(STORE_FILE_NAME);
+        if (Files.exists(storeFile)) {
+            replay(storeFile);
+        }
+        compact(storeFile);
+        this.writer = Files.newBufferedWriter(storeFile, StandardCharsets.UTF_8,
+                                              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        log.info("Opened program state store {} with {} programs", storeFile, states.size());
+    }
+
+    /**
+     * Get what was last written to a program
+     *
+     * @param pid the pid of the program object
+     * @return the state, or null if it is not known or stale
+     */
+    public synchronized State get(String pid) {
+        return states.get(pid);
+    }
+
+    /**
+     * Record what have been written to a program, now that it is published
+     *
+     * @param pid   the pid of the program object
+     * @param state what was written
+     * @throws IOException if the store could not be written
+     */
+    public synchronized void record(String pid, State state) throws IOException {
+        states.put(pid, state);
+        write(format(pid, state));
+    }
+
+    /**
+     * Mark the state of a program stale, as the program is about to be changed, or could have been
+     *
+     * @param pid the pid of the program object
+     * @throws IOException if the store could not be written
+     */
+    public synchronized void stale(String pid) throws IOException {
+        if (states.remove(pid) != null) {
+            write(STALE + SEPARATOR + pid);
+        }
+    }
+
+    /**
+     * @return the number of programs with a known state
+     */
+    public synchronized int size() {
+        return states.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (writer != null) {
+            writer.write(line);
+            writer.newLine();
+            //Flush each line, so the store survives if the ingester is killed
+            writer.flush();
+        }
+    }
+
+    /**
+     * Read the store, keeping the latest state of each program
+     *
+     * @param storeFile the store file
+     * @throws IOException if the store could not be read
+     */
+    private void replay(Path storeFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(storeFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                try {
+                    if (fields.length == 2 && STALE.equals(fields[0])) {
+                        states.remove(fields[1]);
+                    } else if (fields.length == 5 && STATE.equals(fields[0])) {
+                        states.put(fields[1], parse(fields));
+                    } else {
+                        //Most likely the last line, written when the ingester was killed
+                        log.warn("Ignoring malformed line '{}' in program state store {}", line, storeFile);
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring malformed line '{}' in program state store {}", line, storeFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the store anew, with only the latest state of each program
+     *
+     * @param storeFile the store file
+     * @throws IOException if the store could not be written
+     */
+    private void compact(Path storeFile) throws IOException {
+        Path tempFile = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+        try (BufferedWriter compacted = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, State> entry : states.entrySet()) {
+                compacted.write(format(entry.getKey(), entry.getValue()));
+                compacted.newLine();
+            }
+        }
+        Files.move(tempFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A state is written as the pid, the title digest, the datastream digests as id=digest separated by commas, and
+     * the file pids separated by commas
+     */
+    private String format(String pid, State state) {
+        StringBuilder datastreams = new StringBuilder();
+        for (Map.Entry<String, byte[]> digest : state.datastreamDigests.entrySet()) {
+            if (datastreams.length() > 0) {
+                datastreams.append(',');
+            }
+            datastreams.append(digest.getKey()).append('=').append(XmlDigest.toHex(digest.getValue()));
+        }
+        String filePids = state.filePids.isEmpty() ? NO_PIDS : String.join(",", state.filePids);
+        return STATE + SEPARATOR + pid + SEPARATOR + XmlDigest.toHex(state.titleDigest) + SEPARATOR + datastreams +
+               SEPARATOR + filePids;
+    }
+
+    private static State parse(String[] fields) {
+        Map<String, byte[]> datastreamDigests = new HashMap<>();
+        if (!fields[3].isEmpty()) {
+            for (String datastream : fields[3].split(",")) {
+                int separator = datastream.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Datastream digest '" + datastream + "' has no id");
+                }
+                datastreamDigests.put(datastream.substring(0, separator),
+                                      XmlDigest.fromHex(datastream.substring(separator + 1)));
+            }
+        }
+        Set<String> filePids = NO_PIDS.equals(fields[4])
+                               ? new HashSet<>()
+                               : new HashSet<>(Arrays.asList(fields[4].split(",")));
+        return new State(XmlDigest.fromHex(fields[2]), datastreamDigests, filePids);
+    }
+
+    private static byte[] digestOf(String title) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(title.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);// will never be reached, every JVM has SHA-256
+        }
+    }
+
+    /**
+     * The digests are held as bytes rather than hex strings, as the store holds every program ingested
+     */
+    private static Map<String, byte[]> toBytes(Map<String, String> hexDigests) {
+        Map<String, byte[]> digests = new HashMap<>();
+        for (Map.Entry<String, String> digest : hexDigests.entrySet()) {
+            digests.put(digest.getKey(), XmlDigest.fromHex(digest.getValue()));
+        }
+        return digests;
+    }
+}
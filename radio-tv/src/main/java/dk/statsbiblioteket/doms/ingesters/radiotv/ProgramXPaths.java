@@ -0,0 +1,122 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The compiled xpath expressions used to read datastreams, and a document builder for the datastreams. The namespaces
+ * of the program metadata are here too, although the program metadata itself is read by {@link ProgramRecordExtractor}.
+ * <p>Neither compiled expressions nor document builders are thread safe, so each thread gets its own instance, which
+ * is compiled once and then reused for all the files the thread handles. Use {@link #get()} to get the instance of
+ * the current thread.</p>
+ */
+final class ProgramXPaths {
+
+    static final String PBC_NAMESPACE = "http://www.pbcore.org/PBCore/PBCoreNamespace.html";
+    static final String RITZAU_NAMESPACE = "http://doms.statsbiblioteket.dk/types/ritzau_original/0/1/#";
+    static final String GALLUP_NAMESPACE = "http://doms.statsbiblioteket.dk/types/gallup_original/0/1/#";
+    static final String PB_NAMESPACE = "http://doms.statsbiblioteket.dk/types/program_broadcast/0/1/#";
+
+    private static final ThreadLocal<ProgramXPaths> perThread = ThreadLocal.withInitial(ProgramXPaths::new);
+
+    final XPathExpression dcIdentifiers;
+    final XPathExpression dcTitle;
+
+    private final DocumentBuilder documentBuilder;
+
+    private ProgramXPaths() {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        xPath.setNamespaceContext(new Namespaces("dc", RecordCreator.DC_NAMESPACE));
+        try {
+            dcIdentifiers = xPath.compile("//dc:identifier");
+            dcTitle = xPath.compile("//dc:title");
+        } catch (XPathExpressionException e) {
+            throw new RuntimeException("Failed to compile xpath expressions", e);// will never be reached, but no matter
+        }
+
+        try {
+            documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("Failed to understand xml...", e);
+        }
+    }
+
+    /**
+     * @return the instance of the current thread
+     */
+    static ProgramXPaths get() {
+        return perThread.get();
+    }
+
+    /**
+     * Select a list of nodes
+     *
+     * @param item       the node to evaluate the expression on
+     * @param expression the expression
+     * @return the nodes selected
+     */
+    NodeList selectNodeList(Object item, XPathExpression expression) {
+        try {
+            return (NodeList) expression.evaluate(item, XPathConstants.NODESET);
+        } catch (XPathExpressionException e) {
+            throw new RuntimeException("Failed to evaluate xpath expression", e);
+        }
+    }
+
+    /**
+     * @return a new empty document
+     */
+    Document newDocument() {
+        return documentBuilder.newDocument();
+    }
+
+    /**
+     * A fixed set of prefix to namespace bindings
+     */
+    private static class Namespaces implements NamespaceContext {
+        private final Map<String, String> namespaces = new HashMap<>();
+
+        private Namespaces(String... prefixesAndNamespaces) {
+            for (int i = 0; i < prefixesAndNamespaces.length; i += 2) {
+                namespaces.put(prefixesAndNamespaces[i], prefixesAndNamespaces[i + 1]);
+            }
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            String namespace = namespaces.get(prefix);
+            return namespace == null ? XMLConstants.NULL_NS_URI : namespace;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> binding : namespaces.entrySet()) {
+                if (binding.getValue().equals(namespaceURI)) {
+                    return binding.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.<String>emptyIterator() : Collections.singleton(prefix).iterator();
+        }
+    }
+}
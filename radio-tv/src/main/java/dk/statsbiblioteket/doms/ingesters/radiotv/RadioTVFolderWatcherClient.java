@@ -32,35 +32,95 @@ import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
 import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
 import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
 import dk.statsbiblioteket.doms.folderwatching.FolderWatcherClient;
+import dk.statsbiblioteket.doms.folderwatching.KeyedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
 import org.xmlunit.builder.Input;
 import org.xmlunit.diff.Diff;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * On added xml files with radio/tv metadata, add objects to DOMS describing these files.
  */
 public class RadioTVFolderWatcherClient extends FolderWatcherClient {
 
+    /**
+     * Any errors are rethrown for max breakage
+     */
+    private static final ErrorHandler RETHROWING_ERROR_HANDLER = new ErrorHandler() {
+
+        @Override
+        public void warning(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+    };
+
     private final Logger log = LoggerFactory.getLogger(getClass());
-    private final DocumentBuilderFactory documentBuilderFactory;
+    private final SAXParserFactory parserFactory;
+    /**
+     * The xml file parsers, one per worker thread, as they are expensive to create but not thread safe
+     */
+    private final ThreadLocal<SAXParser> fileParsers = ThreadLocal.withInitial(this::newFileParser);
+    /**
+     * Schema for the files, or null if the files are not validated
+     */
+    private final Schema preIngestFileSchema;
+    /**
+     * The validators of the files, one per worker thread, for the same reason as the parsers
+     */
+    private final ThreadLocal<ValidatorHandler> fileValidators = ThreadLocal.withInitial(this::newFileValidator);
+    /**
+     * Creates the program records in DOMS. Thread safe, so shared by all workers
+     */
+    private final RecordCreator recordCreator;
+
+    /**
+     * Makes the calls to DOMS. Threads are only kept while in use, and the number in use is bounded by the max number
+     * of calls in flight
+     */
+    private final ExecutorService domsPool;
+
+    /**
+     * What was last written to each program, kept in the state folder if there is one. Closed when this client is
+     * closed
+     */
+    private final ProgramStateStore programStates;
     /**
      * Folder to move failed files to.
      */
@@ -77,12 +137,12 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
      * If true will report ingest successful if object in doms is semantically identical to the one we want to ingest.
      * If neiter overwrite or check is true, the ingester will fail if the object is already in doms.
      */
-    private boolean check;
+    private final boolean check;
 
     /**
-     * Client for communicating with DOMS.
+     * Client for communicating with DOMS. Shared with the record creator, so it bounds all the calls in flight.
      */
-    private final DomsWSClient domsClient;
+    private final AsyncDomsClient doms;
     /**
      * Max number of exceptions before we shut down the watcher
      */
@@ -90,8 +150,31 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
     /**
      * How many times we failed during ingest.
      */
-    private int exceptionCount = 0;
+    private final AtomicInteger exceptionCount = new AtomicInteger(0);
 
+    /**
+     * Locks striped on the file name, so a given file is only handled by one thread at a time, while different
+     * files are handled in parallel.
+     */
+    private final Lock[] fileLocks = new Lock[64];
+
+    /**
+     * Sequences the ingests on the old identifiers of the programs. Two files describing the same program are thus
+     * ingested one after the other, so the second finds the object created by the first, instead of creating a
+     * duplicate.
+     */
+    private final KeyedExecutor<String> programSequencer = new KeyedExecutor<>();
+
+    /**
+     * Records how far the ingest of each file have come, so a restarted ingester can resume where it was
+     */
+    private final IngestJournal journal;
+
+    /**
+     * Digests of the files in the processed and failed folders, for finding duplicates
+     */
+    private final DigestIndex processedFilesIndex;
+    private final DigestIndex failedFilesIndex;
 
 
     /**
@@ -105,7 +188,61 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
      */
     public RadioTVFolderWatcherClient(DomsWSClient domsClient, Path failedFilesFolder, Path processedFilesFolder,
                                       Schema preIngestFileSchema, boolean overwrite, int maxFails, boolean check) {
-        this.domsClient = domsClient;
+        this(domsClient, failedFilesFolder, processedFilesFolder, preIngestFileSchema, overwrite, maxFails, check,
+             new IngestJournal());
+    }
+
+    /**
+     * Initialise the processor.
+     *  @param domsClient           Client used for contacting DOMS.
+     * @param failedFilesFolder    Folder to move failed files to.
+     * @param processedFilesFolder Folder to move processed files to.
+     * @param preIngestFileSchema  Schema for Raio/TV metadata to process.
+     * @param overwrite            if true, will overwrite existing programs. If false, will throw OverwriteExceptions instead
+     * @param maxFails
+     * @param journal              the journal to record the progress of each file in. Closed when this client is closed
+     */
+    public RadioTVFolderWatcherClient(DomsWSClient domsClient, Path failedFilesFolder, Path processedFilesFolder,
+                                      Schema preIngestFileSchema, boolean overwrite, int maxFails, boolean check,
+                                      IngestJournal journal) {
+        this(domsClient, failedFilesFolder, processedFilesFolder, preIngestFileSchema, overwrite, maxFails, check,
+             journal, new ProgramPidCache(ProgramPidCache.Mode.NONE));
+    }
+
+    /**
+     * Initialise the processor.
+     *  @param domsClient           Client used for contacting DOMS.
+     * @param failedFilesFolder    Folder to move failed files to.
+     * @param processedFilesFolder Folder to move processed files to.
+     * @param preIngestFileSchema  Schema for Raio/TV metadata to process.
+     * @param overwrite            if true, will overwrite existing programs. If false, will throw OverwriteExceptions instead
+     * @param maxFails
+     * @param journal              the journal to record the progress of each file in. Closed when this client is closed
+     * @param programPids          the cache of program pids by old identifier
+     */
+    public RadioTVFolderWatcherClient(DomsWSClient domsClient, Path failedFilesFolder, Path processedFilesFolder,
+                                      Schema preIngestFileSchema, boolean overwrite, int maxFails, boolean check,
+                                      IngestJournal journal, ProgramPidCache programPids) {
+        this(domsClient, failedFilesFolder, processedFilesFolder, preIngestFileSchema, overwrite, maxFails, check,
+             journal, programPids, AsyncDomsClient.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Initialise the processor.
+     *  @param domsClient           Client used for contacting DOMS.
+     * @param failedFilesFolder    Folder to move failed files to.
+     * @param processedFilesFolder Folder to move processed files to.
+     * @param preIngestFileSchema  Schema for Raio/TV metadata to process.
+     * @param overwrite            if true, will overwrite existing programs. If false, will throw OverwriteExceptions instead
+     * @param maxFails
+     * @param journal              the journal to record the progress of each file in. Closed when this client is closed
+     * @param programPids          the cache of program pids by old identifier
+     * @param maxDomsRequests      the max number of calls to DOMS in flight at a time, across all files
+     */
+    public RadioTVFolderWatcherClient(DomsWSClient domsClient, Path failedFilesFolder, Path processedFilesFolder,
+                                      Schema preIngestFileSchema, boolean overwrite, int maxFails, boolean check,
+                                      IngestJournal journal, ProgramPidCache programPids, int maxDomsRequests) {
+        this.journal = journal;
         this.maxFails = maxFails;
         this.check = check;
         log.debug("Creating {} with params domsClient, failedFilesFolder={}, processedFilesFolder={}, overwrite={}, maxFails={}, check={}",
@@ -113,44 +250,98 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
         this.failedFilesFolder = failedFilesFolder;
         this.processedFilesFolder = processedFilesFolder;
         this.overwrite = overwrite;
+        this.processedFilesIndex = new DigestIndex(processedFilesFolder);
+        this.failedFilesIndex = new DigestIndex(failedFilesFolder);
+
+        this.preIngestFileSchema = preIngestFileSchema;
+        parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+
+        final AtomicInteger domsThreadNumber = new AtomicInteger(1);
+        domsPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Doms" + domsThreadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        doms = new AsyncDomsClient(domsClient, domsPool, maxDomsRequests);
+        programStates = openProgramStates(journal.getStateFolder());
+        recordCreator = new RecordCreator(doms, overwrite, check, programPids, programStates);
+        if (journal.getStateFolder() != null) {
+            try {
+                recordCreator.useCacheSnapshots(journal.getStateFolder());
+            } catch (IOException e) {
+                log.warn("Failed to read cache snapshots from {}, so starting with empty caches",
+                         journal.getStateFolder(), e);
+            }
+        }
 
-        documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setSchema(preIngestFileSchema);
-        documentBuilderFactory.setNamespaceAware(true);
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private ProgramStateStore openProgramStates(Path stateFolder) {
+        if (stateFolder != null) {
+            try {
+                return new ProgramStateStore(stateFolder);
+            } catch (IOException e) {
+                log.warn("Failed to open program state store in {}, so the states are only kept in memory",
+                         stateFolder, e);
+            }
+        }
+        return new ProgramStateStore();
     }
 
     /**
-     * Create the xml file parser
+     * Create a schema validating xml file parser.
+     * Synchronized as the SAXParserFactory is not thread safe. The parser itself is only used by the caller.
      *
-     * @return a document builder
+     * @return a sax parser
      */
-    private synchronized DocumentBuilder getFileParser() {
-        DocumentBuilder preingestFilesBuilder;
+    private synchronized SAXParser newFileParser() {
         try {
-            preingestFilesBuilder = documentBuilderFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException pce) {
-            throw new RuntimeException(pce);// will never be reached, but no matter
+            return parserFactory.newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new RuntimeException(e);// will never be reached, but no matter
         }
+    }
 
-        ErrorHandler documentErrorHandler = new ErrorHandler() { //Any errors are rethrown for max breakage
-
-            @Override
-            public void warning(SAXParseException exception) throws SAXException {
-                throw exception;
-            }
-
-            @Override
-            public void error(SAXParseException exception) throws SAXException {
-                throw exception;
-            }
+    /**
+     * Create a validator for the xml files. The schema is thread safe, so no need to synchronize.
+     *
+     * @return a validator handler
+     */
+    private ValidatorHandler newFileValidator() {
+        return preIngestFileSchema.newValidatorHandler();
+    }
 
-            @Override
-            public void fatalError(SAXParseException exception) throws SAXException {
-                throw exception;
-            }
-        };
-        preingestFilesBuilder.setErrorHandler(documentErrorHandler);
-        return preingestFilesBuilder;
+    /**
+     * Parse a program file with the xml file parser of the current thread. The file is read once, and validated
+     * against the schema while the parts ingested in DOMS are extracted, so an invalid file fails without ever being
+     * held in memory.
+     *
+     * @param content the content of the file to parse
+     * @return the program record of the file
+     * @throws SAXException if the file is not well formed, or not valid according to the schema
+     * @throws IOException  if the file could not be read
+     */
+    private ProgramRecord parse(FileContent content) throws SAXException, IOException {
+        SAXParser fileParser = fileParsers.get();
+        fileParser.reset();
+        XMLReader reader = fileParser.getXMLReader();
+        ProgramRecordExtractor extractor = new ProgramRecordExtractor();
+        ContentHandler handler = extractor;
+        if (preIngestFileSchema != null) {
+            ValidatorHandler validator = fileValidators.get();
+            validator.setErrorHandler(RETHROWING_ERROR_HANDLER);
+            validator.setContentHandler(extractor);
+            handler = validator;
+        }
+        reader.setContentHandler(handler);
+        reader.setErrorHandler(RETHROWING_ERROR_HANDLER);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", extractor);
+        reader.parse(content.newInputSource());
+        return extractor.getRecord();
     }
 
     /**
@@ -159,7 +350,7 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
      * @param addedFile Full path to the new file.
      */
     @Override
-    public synchronized void fileAdded(Path addedFile) {
+    public void fileAdded(Path addedFile) {
         if (isXmlFile(addedFile)) {
             handleAddedOrModifiedFile(addedFile);
         }
@@ -182,6 +373,30 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
         //Note, this will be invoked with this client moves the files out of the hotFolder....
     }
 
+    @Override
+    public void close() {
+        domsPool.shutdown();
+        log.info("File pid cache statistics: {}", recordCreator.getFilePidCache());
+        log.info("Program pid cache statistics: {}", recordCreator.getProgramPidCache());
+        if (journal.getStateFolder() != null) {
+            try {
+                recordCreator.writeCacheSnapshots(journal.getStateFolder());
+            } catch (IOException e) {
+                log.warn("Failed to write cache snapshots to {}", journal.getStateFolder(), e);
+            }
+        }
+        try {
+            programStates.close();
+        } catch (IOException e) {
+            log.warn("Failed to close program state store", e);
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close ingest journal", e);
+        }
+    }
+
     /**
      * Checks if the path is a regular file with the extension .xml
      *
@@ -193,16 +408,97 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
     }
 
     /**
-     * Handle a file that is added or modified, as this is the same for this client
+     * Handle a file that is added or modified, as this is the same for this client.
+     * Holds the lock for the file while handling it. Another thread could have handled and moved the file while we
+     * waited for the lock, so check that it is still there.
+     * <br>
+     * If the journal shows that this version of the file was partly handled before, the handling is resumed from
+     * where it stopped.
      *
      * @param file the file to handle
      */
     private void handleAddedOrModifiedFile(Path file) {
-        if (!isAlreadyHandled(file)) {
-            handleFile(file);
+        Lock fileLock = fileLock(file);
+        fileLock.lock();
+        try {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            if (!attributes.isRegularFile()) {
+                return;
+            }
+            IngestJournal.Entry entry = journal.get(file);
+            if (entry != null && entry.matches(attributes) && resume(file, entry)) {
+                return;
+            }
+            FileContent content;
+            try {
+                content = FileContent.read(file);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            if (!isAlreadyHandled(file, content)) {
+                journal.discovered(file, attributes);
+                handleFile(file, content);
+            }
+        } catch (IOException e) {
+            log.error("Failed to record the progress of file {} in the ingest journal", file, e);
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock.unlock();
         }
     }
 
+    /**
+     * Resume the handling of a file from the stage it reached before. A file that was archived is handled from the
+     * start, so it is only deleted if the copy in the processed folder is the same, and not on the word of the journal
+     * alone.
+     *
+     * @param file  the file
+     * @param entry the journal entry of the file, which matches the current version of the file
+     * @return true if the file was handled, false if it must be handled from the start
+     */
+    private boolean resume(Path file, IngestJournal.Entry entry) {
+        List<String> pids = new ArrayList<>(entry.getPids());
+        switch (entry.getStage()) {
+            case PUBLISHED:
+                log.info("Journal shows that file {} was ingested and published as {}, so archiving it", file, pids);
+                try {
+                    moveToProcessed(file, pids, null);
+                } catch (Exception e) {
+                    failed(file, pids, e);
+                }
+                return true;
+            case INGESTING:
+                if (pids.isEmpty()) {
+                    return false;
+                }
+                log.info("Journal shows that file {} was ingested as {} but not published, so publishing", file, pids);
+                try {
+                    publish(file, pids);
+                    moveToProcessed(file, pids, null);
+                } catch (Exception e) {
+                    failed(file, pids, e);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the lock for the given file
+     *
+     * @param file the file
+     * @return the lock striped on the file name
+     */
+    private Lock fileLock(Path file) {
+        return fileLocks[Math.floorMod(file.getFileName().hashCode(), fileLocks.length)];
+    }
+
     /**
      * Checks if the file is already handled, by looking in the processedFilesFolder
      *
@@ -210,26 +506,45 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
      * @return true if we already handled the file
      */
     protected boolean isAlreadyHandled(Path file) {
+        FileContent content;
         try {
-            Path possibleCopy = processedFilesFolder.resolve(file.getFileName());
-            if (Files.isRegularFile(possibleCopy)) {
-                log.debug("Found possible copy of file {} in {}", file, processedFilesFolder);
-
-
-                Source control = Input.fromFile(file.toFile()).build();
-                Source test = Input.fromFile(possibleCopy.toFile()).build();
+            content = FileContent.read(file);
+        } catch (IOException e) {
+            log.warn("IOException while trying to find duplicate of file={} in processedFilesFolder={}",
+                     file, processedFilesFolder, e);
+            incrementFailedTries();
+            return false;
+        }
+        return isAlreadyHandled(file, content);
+    }
 
-                Diff d = Util.xmlDiff(control, test);
+    /**
+     * Checks if the file is already handled, by looking in the processedFilesFolder
+     *
+     * @param file    the file to examine
+     * @param content the content of the file
+     * @return true if we already handled the file
+     */
+    private boolean isAlreadyHandled(Path file, FileContent content) {
+        try {
+            String filename = file.getFileName().toString();
+            String copyDigest = processedFilesIndex.getDigest(filename);
+            if (copyDigest != null) {
+                log.debug("Found possible copy of file {} in {}", file, processedFilesFolder);
 
-                if (!d.hasDifferences()) {
+                if (copyDigest.equals(content.getDigest())) {
                     log.info("Found semantic duplicate of file={} in processedFolder={}, so deleting file={}",
                              file, processedFilesFolder, file);
                     Files.deleteIfExists(file);
                     return true;
-                } else {
-                    log.debug("File={} has differences from file {} in processedFolder={}, so continuing ingest: differences='{}' ",file,file,processedFilesFolder,d.toString());
+                } else if (log.isDebugEnabled()) {
+                    log.debug("File={} has differences from file {} in processedFolder={}, so continuing ingest: differences='{}' ",
+                              file, file, processedFilesFolder,
+                              describeDifferences(file, processedFilesFolder.resolve(filename)));
                 }
             }
+        } catch (SAXException e) {
+            log.debug("File {} is not well formed xml, so it cannot be a duplicate", file, e);
         } catch (IOException e) {
             log.warn("IOException while trying to find duplicate of file={} in processedFilesFolder={}",
                      file, processedFilesFolder, e);
@@ -239,25 +554,50 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
         return false;
     }
 
+    /**
+     * Describe the differences between two xml files. Only meant for logging, as this compares the full documents.
+     *
+     * @param control the control file
+     * @param test    the test file
+     * @return the differences
+     */
+    private String describeDifferences(Path control, Path test) {
+        Diff d = Util.xmlDiff(Input.fromFile(control.toFile()).build(), Input.fromFile(test.toFile()).build());
+        return d.toString();
+    }
+
     /**
      * Handles the file, by ingesting it in DOMS as a Program object
      *
-     * @param file the xml file to ingest
+     * @param file    the xml file to ingest
+     * @param content the content of the file
      */
-    private void handleFile(Path file) {
+    private void handleFile(Path file, FileContent content) {
         List<String> pidsInProgress = new ArrayList<>();
 
         try { //Trick to rename the thread and name it back
-            log.debug("Creating xml parser");
-            DocumentBuilder fileParser = getFileParser();
+            journal.record(file, IngestJournal.Stage.PARSING, pidsInProgress);
 
             log.debug("Parsing xml file");
-            Document radioTVMetadata = fileParser.parse(file.toFile());
+            long parseStart = System.nanoTime();
+            ProgramRecord program;
+            try {
+                program = parse(content);
+            } catch (SAXException e) {
+                log.warn("File {} rejected as invalid after {} ms, before contacting DOMS", file,
+                         TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - parseStart));
+                throw e;
+            }
+            log.debug("Parsed and validated file {} in {} ms", file,
+                      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - parseStart));
 
-            log.debug("Creating doms record");
-            Path tempFile = createRecord(radioTVMetadata, file, pidsInProgress);
+            List<String> oldIdentifiers = program.getOldIdentifiers();
+            log.debug("Creating doms record, when no other ingest of the program with old identifiers {} is running",
+                      oldIdentifiers);
+            programSequencer.call(oldIdentifiers,
+                                  () -> createRecord(recordCreator, program, file, pidsInProgress));
 
-            moveToProcessed(file, tempFile);
+            moveToProcessed(file, pidsInProgress, content);
 
             log.debug("Ingest complete");
         } catch (Exception e) {
@@ -266,47 +606,64 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
         }
     }
 
-    private void moveToProcessed(Path ingested_file, Path tempFile) throws IOException {
+    /**
+     * Move an ingested file to the processed folder, and delete any identical copy in the failed folder.
+     *
+     * @param ingested_file the ingested file
+     * @param pids          the pids of the objects the file was ingested as
+     * @param content       the content of the file, if it have been read, otherwise null
+     * @throws IOException if the file could not be moved
+     */
+    private void moveToProcessed(Path ingested_file, List<String> pids, FileContent content) throws IOException {
         log.debug("Ingest was successful, so move file {} to the processedFilesFolder={}", ingested_file,
                   processedFilesFolder);
         // The ingest was successful, if we make it here...
         // Move the processed file to the finished files folder.
-        Files.move(ingested_file, processedFilesFolder.resolve(ingested_file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        String filename = ingested_file.getFileName().toString();
+        Path processedFile = processedFilesFolder.resolve(filename);
+        Files.move(ingested_file, processedFile, StandardCopyOption.REPLACE_EXISTING);
+        if (content != null && content.getDigestIfKnown() != null) {
+            processedFilesIndex.put(filename, content.getDigestIfKnown());
+        } else {
+            processedFilesIndex.invalidate(filename);
+        }
 
-        // And it is now safe to delete the "in progress" PID file.
-        Files.deleteIfExists(tempFile);
+        journal.record(ingested_file, IngestJournal.Stage.ARCHIVED, pids);
 
         try {
             // If the file also exists in failedFilesFolder, and that file is identical to the one we just ingested, delete it
-            Path failedFile = failedFilesFolder.resolve(ingested_file.getFileName());
-            if (Files.exists(failedFile)){
-                log.info("File {} also found in failedFolder",ingested_file,failedFilesFolder);
-                Source control = Input.fromFile(ingested_file.toFile()).build();
-                Source test = Input.fromFile(failedFile.toFile()).build();
+            Path failedFile = failedFilesFolder.resolve(filename);
+            String failedDigest = failedFilesIndex.getDigest(filename);
+            if (failedDigest != null){
+                log.info("File {} also found in failedFolder={}",ingested_file,failedFilesFolder);
 
-                Diff d = Util.xmlDiff(control, test);
-
-                if (!d.hasDifferences()) {
+                String processedDigest = content != null ? content.getDigest() : processedFilesIndex.getDigest(filename);
+                if (failedDigest.equals(processedDigest)) {
                     log.info("Successfully ingested file {} is identical to file {} in failedFolder={}, so deleting {}",
-                             ingested_file, failedFilesFolder, failedFile);
+                             ingested_file, failedFile, failedFilesFolder, failedFile);
                     Files.deleteIfExists(failedFile);
+                    failedFilesIndex.invalidate(filename);
                 } else {
-                    log.info("Successfully ingested file {} is different from file {} in failedFolder={}. Just Saying: differences='{}' ",
-                              ingested_file,failedFile,failedFilesFolder,d.toString());
+                    log.info("Successfully ingested file {} is different from file {} in failedFolder={}. Just Saying",
+                             ingested_file, failedFile, failedFilesFolder);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Differences between {} and {}: differences='{}' ", processedFile, failedFile,
+                                  describeDifferences(processedFile, failedFile));
+                    }
                 }
             }
-        } catch (IOException e) {
+        } catch (IOException | SAXException e) {
             log.warn("Failed to check for semantic equivalent file in {} after successful ingest of {}",failedFilesFolder,ingested_file,e);
         }
 
     }
 
     /**
-     * Create objects in DOMS for given program metadata. On success, the originating file will be moved to the folder
-     * for processed files. On failure, a file in the folder of failed files will contain the pids that were not
-     * published.
+     * Create objects in DOMS for given program metadata. The pids are recorded in the journal as soon as the objects
+     * are written, and again when they are published.
      *
-     * @param radioTVMetadata The Metadata for the program.
+     * @param recordCreator   The record creator to ingest the program with.
+     * @param program         The Metadata for the program.
      * @param addedFile       The file containing the program metadata
      * @param pidsInProgress  Initially empty list of pids to update with pids collected during process, to be published
      *                        or reported as failed in the end.
@@ -315,57 +672,50 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
      * @throws XMLParseException     On trouble parsing XML.
      * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
      */
-    private Path createRecord(Document radioTVMetadata,
+    private Void createRecord(RecordCreator recordCreator,
+                              ProgramRecord program,
                               Path addedFile,
                               List<String> pidsInProgress) throws IOException, ServerOperationFailed, XMLParseException, NoObjectFound {
         String filename = addedFile.getFileName().toString();
         // Create or update program object for this program
         log.debug("Starting to create doms record for file");
 
-        log.debug("Creating record creator");
-        RecordCreator recordCreator = new RecordCreator(domsClient, overwrite, check);
-
+        journal.record(addedFile, IngestJournal.Stage.INGESTING, pidsInProgress);
         log.info("Ingesting program");
-        String programPID = recordCreator.ingestProgram(radioTVMetadata, filename);
+        String programPID = recordCreator.ingestProgram(program, filename);
         log.info("Program ingested with pid={}", programPID);
 
         pidsInProgress.add(programPID);
-        Path allWrittenPIDs = writePIDs(addedFile, pidsInProgress);
+        journal.record(addedFile, IngestJournal.Stage.INGESTING, pidsInProgress);
 
-        // Publish the objects created in the process
-        log.debug("Publishing objects {}", pidsInProgress);
-
-        domsClient.publishObjects(
-                "Publishing objects " + pidsInProgress + " as part of ingest of program " + addedFile.getFileName(),
-                pidsInProgress.toArray(new String[pidsInProgress.size()]));
+        publish(addedFile, pidsInProgress);
 
         log.info("Finished creating doms record for file");
-        return allWrittenPIDs;
+        return null;
     }
 
     /**
-     * Iteratively (over)write the pid the <code>InProcessPIDs</code> file
-     * associated with the <code>preIngestFile</code>.
+     * Publish the objects created in the ingest of a file
      *
-     * @param preIngestFile The file containing the Metadata for a program.
-     * @param PIDs          A list of PIDs to write.
-     * @return The <code>File</code> which the PIDs were written to.
-     * @throws IOException thrown if the file cannot be written to.
+     * @param addedFile the file containing the program metadata
+     * @param pids      the pids of the objects to publish
+     * @throws ServerOperationFailed On trouble updating DOMS.
+     * @throws IOException           If the journal could not be written
      */
-    private Path writePIDs(Path preIngestFile, List<String> PIDs) throws IOException {
-        Path pidFile = inProcessPids(preIngestFile);
+    private void publish(Path addedFile, List<String> pids) throws ServerOperationFailed, IOException {
+        log.debug("Publishing objects {}", pids);
 
-        try (final PrintWriter writer = new PrintWriter(pidFile.toFile());) {
-            for (String currentPID : PIDs) {
-                writer.println(currentPID);
-            }
-        }
-        return pidFile;
+        AsyncDomsClient.await(doms.publishObjects(
+                "Publishing objects " + pids + " as part of ingest of program " + addedFile.getFileName(),
+                pids.toArray(new String[pids.size()])));
+
+        journal.record(addedFile, IngestJournal.Stage.PUBLISHED, pids);
+        recordCreator.published(pids);
     }
 
     /**
      * Move the failed pre-ingest file to the "failedFilesFolder" folder and
-     * rename the in-progress PID list file to a failed PID list file, also
+     * write the failed PIDs to a failed PID list file, also
      * stored in the "failedFilesFolder" folder.
      * <p/>
      * This method should be called before "pulling the plug".
@@ -382,15 +732,22 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
                       pidsToPublish, exception);
 
             Files.move(addedFile, failedFilesFolder.resolve(addedFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            failedFilesIndex.invalidate(filename);
             log.debug("Moved file {} to failedFilesFolder={}", addedFile, failedFilesFolder);
 
-            // Rename the in-progress PIDs to failed PIDs.
-            renamePidLists(addedFile);
-
-            log.trace("Attempting to delete objects {} from doms", pidsToPublish);
-            String deleteComment = Util.domsCommenter(filename, " deleted objects {0} due to ingest failure",
-                                                      pidsToPublish);
-            domsClient.deleteObjects(deleteComment, pidsToPublish.toArray(new String[pidsToPublish.size()]));
+            // Record the failed PIDs, for the operators
+            writeFailedPids(addedFile, pidsToPublish);
+            journal.record(addedFile, IngestJournal.Stage.FAILED, pidsToPublish);
+            recordCreator.failed(pidsToPublish);
+
+            if (!pidsToPublish.isEmpty()) {
+                log.trace("Attempting to delete objects {} from doms", pidsToPublish);
+                String deleteComment = Util.domsCommenter(filename, " deleted objects {0} due to ingest failure",
+                                                          pidsToPublish);
+                AsyncDomsClient.await(doms.deleteObjects(deleteComment,
+                                                         pidsToPublish.toArray(new String[pidsToPublish.size()])));
+                recordCreator.getProgramPidCache().deleted(pidsToPublish);
+            }
 
             log.error("Cleanup succeeded for file={} and pids={}", addedFile, pidsToPublish);
 
@@ -404,15 +761,19 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
 
 
     /**
-     * Rename the file with a list of PIDs in progress and never published to a file with a list of failed PIDs.
+     * Write the list of PIDs that were never published to a file with a list of failed PIDs.
      *
      * @param failedMetadataFile The originating file.
+     * @param PIDs               The failed PIDs
      */
-    private synchronized void renamePidLists(Path failedMetadataFile) throws IOException {
-        Path activePIDsFile = inProcessPids(failedMetadataFile);
-        Path failedPIDsFile = failedPids(failedMetadataFile);
-        if (Files.exists(activePIDsFile)) {
-            Files.move(activePIDsFile, failedPIDsFile, StandardCopyOption.REPLACE_EXISTING);
+    private void writeFailedPids(Path failedMetadataFile, List<String> PIDs) throws IOException {
+        if (PIDs.isEmpty()) {
+            return;
+        }
+        try (final PrintWriter writer = new PrintWriter(failedPids(failedMetadataFile).toFile())) {
+            for (String currentPID : PIDs) {
+                writer.println(currentPID);
+            }
         }
     }
 
@@ -420,26 +781,22 @@ public class RadioTVFolderWatcherClient extends FolderWatcherClient {
         return failedFilesFolder.resolve(failedMetadataFile.getFileName().toString() + ".failedPIDs");
     }
 
-    private Path inProcessPids(Path failedMetadataFile) {
-        return failedFilesFolder.resolve(failedMetadataFile.getFileName().toString() + ".InProcessPIDs");
-    }
-
 
     /**
      * The number of tries is incremented by one.
      * If this exceeds the maximum number of allowed failures,
      */
-    private synchronized void incrementFailedTries() {
-        exceptionCount += 1;
-        if (maxFails > 0 && exceptionCount >= maxFails) {
-            throw new RuntimeException("Too many errors (" + exceptionCount + ") in ingest. Exiting.");
+    private void incrementFailedTries() {
+        int failures = exceptionCount.incrementAndGet();
+        if (maxFails > 0 && failures >= maxFails) {
+            throw new RuntimeException("Too many errors (" + failures + ") in ingest. Exiting.");
         }
     }
 
     @Override
     public String toString() {
         return "RadioTVFolderWatcherClient{" +
-               "exceptionCount=" + exceptionCount +
+               "exceptionCount=" + exceptionCount.get() +
                ", failedFilesFolder=" + failedFilesFolder +
                ", processedFilesFolder=" + processedFilesFolder +
                ", overwrite=" + overwrite +
@@ -14,8 +14,6 @@ import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
 import dk.statsbiblioteket.doms.client.relations.ObjectRelation;
 import dk.statsbiblioteket.doms.client.relations.Relation;
 import dk.statsbiblioteket.doms.client.relations.RelationDeclaration;
-import dk.statsbiblioteket.util.xml.DOM;
-import dk.statsbiblioteket.util.xml.XPathSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -29,16 +27,28 @@ import org.xmlunit.diff.ComparisonResult;
 import org.xmlunit.diff.ComparisonType;
 import org.xmlunit.diff.Diff;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
@@ -57,38 +67,160 @@ public class RecordCreator {
     public static final String DC_DS_ID = "DC";
     public static final String HAS_FILE_RELATION = "http://doms.statsbiblioteket.dk/relations/default/0/1/#hasFile";
 
+    /**
+     * The file objects rarely change, so the pids of the file urls are remembered for long. A file url that is not
+     * found is only remembered shortly, as the file object could be created by the file ingester any time.
+     */
+    public static final int FILE_PID_CACHE_SIZE = 100000;
+    public static final long FILE_PID_CACHE_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    public static final long FILE_PID_CACHE_NOT_FOUND_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    public static final String FILE_PID_SNAPSHOT_FILE_NAME = "filePids.snapshot";
+    public static final String PROGRAM_PID_SNAPSHOT_FILE_NAME = "programPids.snapshot";
+    public static final String KNOWN_IDENTIFIERS_SNAPSHOT_FILE_NAME = "knownIdentifiers.snapshot";
+
+    /**
+     * The title, the datastreams and the file relations of a program are checked and updated concurrently, as they
+     * are independent. This is the max number of calls of one program in flight at a time, so one program cannot
+     * take all the calls the DOMS client allows in flight.
+     */
+    public static final int MAX_PARALLEL_UPDATES = 6;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
-    private final DomsWSClient domsClient;
+    /**
+     * Makes the calls to DOMS, so the independent calls of an ingest are in flight at the same time
+     */
+    private final AsyncDomsClient doms;
     private final boolean overwrite;
     private final boolean check;
-    private final DocumentBuilder documentBuilder;
-    private final XPathSelector xPathSelector;
-
+    /**
+     * Pids of file objects by file url
+     */
+    private final LookupCache<String, String> filePidCache;
+    /**
+     * Pids of program objects by old identifier
+     */
+    private final ProgramPidCache programPids;
+    /**
+     * What was last written to each program, so programs can be compared without reading DOMS
+     */
+    private final ProgramStateStore programStates;
+    /**
+     * What have been written to the programs ingested but not yet published, by pid
+     */
+    private final Map<String, ProgramStateStore.State> unpublishedStates = new ConcurrentHashMap<>();
 
+    /**
+     * Create a record creator. It is thread safe, so one record creator can be used for all files.
+     * The pids of programs are not remembered, so DOMS is asked each time.
+     */
     public RecordCreator(DomsWSClient domsClient, boolean overwrite, boolean check) {
-        this.domsClient = domsClient;
+        this(domsClient, overwrite, check, new ProgramPidCache(ProgramPidCache.Mode.NONE));
+    }
+
+    /**
+     * Create a record creator. It is thread safe, so one record creator can be used for all files.
+     *
+     * @param programPids the cache of program pids by old identifier. Must only be shared with other record creators
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite, boolean check, ProgramPidCache programPids) {
+        this(domsClient, overwrite, check, programPids, Runnable::run, 1);
+    }
+
+    /**
+     * Create a record creator. It is thread safe, so one record creator can be used for all files.
+     *
+     * @param programPids        the cache of program pids by old identifier. Must only be shared with other record
+     *                           creators
+     * @param updateExecutor     the executor to make the calls to DOMS on
+     * @param maxParallelUpdates the max number of calls to DOMS in flight at a time. 1 with Runnable::run as the
+     *                           executor makes the calls one after another on the ingesting thread
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite, boolean check, ProgramPidCache programPids,
+                         Executor updateExecutor, int maxParallelUpdates) {
+        this(domsClient, overwrite, check, programPids, updateExecutor, maxParallelUpdates, new ProgramStateStore());
+    }
+
+    /**
+     * Create a record creator. It is thread safe, so one record creator can be used for all files.
+     *
+     * @param programPids        the cache of program pids by old identifier. Must only be shared with other record
+     *                           creators
+     * @param updateExecutor     the executor to make the calls to DOMS on
+     * @param maxParallelUpdates the max number of calls to DOMS in flight at a time. 1 with Runnable::run as the
+     *                           executor makes the calls one after another on the ingesting thread
+     * @param programStates      the store of what was last written to each program. The state of a program is only
+     *                           recorded when {@link #published(List)} is called for it
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite, boolean check, ProgramPidCache programPids,
+                         Executor updateExecutor, int maxParallelUpdates, ProgramStateStore programStates) {
+        this(new AsyncDomsClient(domsClient, updateExecutor, maxParallelUpdates), overwrite, check, programPids,
+             programStates);
+    }
+
+    /**
+     * Create a record creator. It is thread safe, so one record creator can be used for all files.
+     *
+     * @param doms          the client to make the calls to DOMS with. It bounds the number of calls in flight, so
+     *                      share it with everything else calling DOMS
+     * @param programPids   the cache of program pids by old identifier. Must only be shared with other record
+     *                      creators
+     * @param programStates the store of what was last written to each program. The state of a program is only
+     *                      recorded when {@link #published(List)} is called for it
+     */
+    public RecordCreator(AsyncDomsClient doms, boolean overwrite, boolean check, ProgramPidCache programPids,
+                         ProgramStateStore programStates) {
+        this.doms = doms;
+        this.programStates = programStates;
+        this.programPids = programPids;
         this.overwrite = overwrite;
         this.check = check;
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        try {
-            documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("Failed to understand xml...", e);
-        }
-        //This is not threadsafe so it must be created here, as we make a new RecordCreater for each file to ingest
-        xPathSelector = DOM.createXPathSelector(
-                "dc", DC_NAMESPACE,
-                "pbc", "http://www.pbcore.org/PBCore/PBCoreNamespace.html",
-                "ritzau", "http://doms.statsbiblioteket.dk/types/ritzau_original/0/1/#",
-                "gallup", "http://doms.statsbiblioteket.dk/types/gallup_original/0/1/#",
-                "pb", "http://doms.statsbiblioteket.dk/types/program_broadcast/0/1/#");
+        this.filePidCache = new LookupCache<>("filePids", FILE_PID_CACHE_SIZE, FILE_PID_CACHE_TTL_MS,
+                                              FILE_PID_CACHE_NOT_FOUND_TTL_MS);
     }
 
     /**
-     * Ingests or updates a program object.
+     * @return the cache of file object pids by file url, for the statistics
+     */
+    public LookupCache<String, String> getFilePidCache() {
+        return filePidCache;
+    }
+
+    /**
+     * @return the cache of program pids by old identifier
+     */
+    public ProgramPidCache getProgramPidCache() {
+        return programPids;
+    }
+
+    /**
+     * Use the snapshots of the lookup caches written by an earlier record creator, so the caches start warm
      *
-     * Synchronized on this object, not class, as the xpath system for reading the source file is not thread safe
+     * @param folder the folder with the snapshots
+     * @throws IOException if a snapshot could not be read
+     */
+    public void useCacheSnapshots(Path folder) throws IOException {
+        CacheSnapshot filePids = CacheSnapshot.open(folder.resolve(FILE_PID_SNAPSHOT_FILE_NAME));
+        if (filePids != null) {
+            filePidCache.useSnapshot(filePids);
+        }
+        programPids.useSnapshot(folder.resolve(PROGRAM_PID_SNAPSHOT_FILE_NAME));
+    }
+
+    /**
+     * Write snapshots of the lookup caches, for the next record creator to use
      *
+     * @param folder the folder to write the snapshots in
+     * @throws IOException if a snapshot could not be written
+     */
+    public void writeCacheSnapshots(Path folder) throws IOException {
+        CacheSnapshot.write(filePidCache, folder.resolve(FILE_PID_SNAPSHOT_FILE_NAME));
+        programPids.writeSnapshot(folder.resolve(PROGRAM_PID_SNAPSHOT_FILE_NAME));
+        programPids.writeKnownIdentifiers(folder.resolve(KNOWN_IDENTIFIERS_SNAPSHOT_FILE_NAME));
+    }
+
+    /**
+     * Ingests or updates a program object.
      *
      * @param radioTVMetadata Bibliographical metadata about the program.
      * @param filename the name of the source file. Is only used for logging and doms audit comments
@@ -100,23 +232,56 @@ public class RecordCreator {
      * @throws MalformedURLException if a file element contains an invalid URL.
      * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
      */
-    public synchronized String ingestProgram(Document radioTVMetadata, String filename) throws NoObjectFound, ServerOperationFailed, MalformedURLException, OverwriteException, XMLParseException {
+    public String ingestProgram(Document radioTVMetadata, String filename) throws NoObjectFound, ServerOperationFailed, MalformedURLException, OverwriteException, XMLParseException {
+        return ingestProgram(toProgramRecord(radioTVMetadata), filename);
+    }
+
+    /**
+     * Ingests or updates a program object.
+     *
+     * @param program  Bibliographical metadata about the program, as read from the source file.
+     * @param filename the name of the source file. Is only used for logging and doms audit comments
+     * @return PID of the newly created program object, created by the DOMS.
+     *
+     * @throws ServerOperationFailed    if creation or manipulation of the program object fails.
+     * @throws XMLParseException        if any errors were encountered while processing the metadata
+     * @throws MalformedURLException if a file element contains an invalid URL.
+     * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
+     */
+    public String ingestProgram(ProgramRecord program, String filename) throws NoObjectFound, ServerOperationFailed, MalformedURLException, OverwriteException, XMLParseException {
         // Get pids of referenced files - do this first, to ensure fail-early in case of missing files.
-        List<String> filePIDs = getFilePids(radioTVMetadata);
+        List<String> filePIDs = getFilePids(program);
         log.debug("Found pids {} of referenced files",filePIDs);
 
         // Find or create program object.
-        List<String> oldIdentifiers = getOldIdentifiers(radioTVMetadata);
+        List<String> oldIdentifiers = program.getOldIdentifiers();
         log.debug("Found these old identifiers {} in the program to ingest", oldIdentifiers);
 
         String programObjectPID = alreadyExistsInRepo(oldIdentifiers);
+        programPids.ingested(oldIdentifiers);
+        //What is read of an existing object, so it is not read again, nor written again if unchanged
+        ObjectState existing = null;
+        //What is written, to be recorded in the program state store when published
+        ProgramStateStore.State written = stateOf(program, filePIDs);
+        //The calls of the checks and updates of this program, bounded so other programs get calls in flight too
+        AsyncDomsClient programDoms = doms.limitedTo(MAX_PARALLEL_UPDATES);
         if (programObjectPID != null){
+            existing = new ObjectState();
             log.info("Program already exist in repo, with pid={}",programObjectPID);
+            ProgramStateStore.State stored = programStates.get(programObjectPID);
+            if (stored != null) {
+                log.debug("Using the stored state of pid={} instead of reading it from DOMS", programObjectPID);
+                existing.useStored(stored, program.getTitle());
+            }
             if (check) {
                 log.info("Preparing to check semantic equivalence of pid={}",programObjectPID);
-                if (checkSemanticIdentity(programObjectPID, radioTVMetadata, filePIDs)) {
+                boolean identical = stored != null
+                                    ? checkStoredIdentity(programObjectPID, program, filePIDs, stored)
+                                    : checkSemanticIdentity(programDoms, programObjectPID, program, filePIDs, existing);
+                if (identical) {
                     //check if what is there is identical to what we want to write
                     log.info("Object pid={} is semantically identical, so no updates are performed.", programObjectPID);
+                    unpublished(programObjectPID, written);
                     return programObjectPID;
                 } else {
                     log.info("Object pid={} is not semantically identical.", programObjectPID);
@@ -124,7 +289,8 @@ public class RecordCreator {
             }
             if (overwrite){ //overwrite whatever is there
                 log.info("Starting to overwrite contents of Program pid={}",programObjectPID);
-                prepareProgramForOverwrite(programObjectPID, filename, oldIdentifiers);
+                markStale(programObjectPID);
+                prepareProgramForOverwrite(programObjectPID, filename, oldIdentifiers, existing.getDcDataStream());
             } else { //fail
                 throw new OverwriteException("Found existing object pid='"+programObjectPID+"' and overwrite flag is false");
             }
@@ -134,154 +300,464 @@ public class RecordCreator {
             log.info("Created new program object with pid={}", programObjectPID);
         }
 
-        //Set label as title
-        setTitle(radioTVMetadata, filename, programObjectPID);
-
-        //Add/update the datastreams
-        String datastreamComment = Util.domsCommenter(filename, "updated datastream");
-        addPBCore(radioTVMetadata, programObjectPID, datastreamComment);
-        addRitzau(radioTVMetadata, programObjectPID, datastreamComment);
-        addGallup(radioTVMetadata, programObjectPID, datastreamComment);
-        addBroadcast(radioTVMetadata, programObjectPID, datastreamComment);
-
-        //Set the relations to the data files
-        setFileRelations(programObjectPID, filePIDs, filename);
+        updateProgram(programDoms, program, programObjectPID, filePIDs, filename, existing);
+        unpublished(programObjectPID, written);
 
         return programObjectPID;
     }
 
-    private boolean checkSemanticIdentity(String programObjectPID, Document radioTVMetadata, List<String> filePIDs) {
+    /**
+     * Record the state of the programs in the program state store, now that they are published
+     *
+     * @param pids the pids of the published objects
+     * @throws IOException if the store could not be written
+     */
+    public void published(List<String> pids) throws IOException {
+        for (String pid : pids) {
+            ProgramStateStore.State state = unpublishedStates.remove(pid);
+            if (state != null) {
+                programStates.record(pid, state);
+            }
+        }
+    }
 
+    /**
+     * Forget the state of the programs, as the ingest failed, and they have been deleted or left half written
+     *
+     * @param pids the pids of the objects of the failed ingest
+     * @throws IOException if the store could not be written
+     */
+    public void failed(List<String> pids) throws IOException {
+        for (String pid : pids) {
+            unpublishedStates.remove(pid);
+            programStates.stale(pid);
+        }
+    }
+
+    /**
+     * Mark the stored state of a program stale before it is changed, so a failure half way through does not leave a
+     * stored state that DOMS does not have
+     */
+    private void markStale(String programObjectPID) {
         try {
-            //Title
-            String expectedTitle = getTitle(radioTVMetadata);
-            String actualTitle = getDomsTitle(programObjectPID);
-            boolean titleIdentical = expectedTitle.equals(actualTitle);
-            if (!titleIdentical) {
-                log.debug("Titles not identical, {} vs {}", expectedTitle, actualTitle);
-            }
+            programStates.stale(programObjectPID);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to mark the state of " + programObjectPID + " stale", e);
+        }
+    }
 
-            //PBCore
-            Document pbCoreExpected = createDocumentFromNode(radioTVMetadata, PBCORE_DESCRIPTION_ELEMENT);
-            Document pbCoreActual = domsClient.getDataStream(programObjectPID, PROGRAM_PBCORE_DS_ID);
-            boolean pbcoreIdentical = compareDocuments(pbCoreExpected, pbCoreActual, programObjectPID);
-
-            //Ritzau
-            Document ritzauExpected = createDocumentFromNode(radioTVMetadata,
-                                                             "//program/originals/ritzau:ritzau_original");
-            Document ritzauActual = domsClient.getDataStream(programObjectPID, RITZAU_ORIGINAL_DS_ID);
-            boolean ritzauIdentical = compareDocuments(ritzauExpected, ritzauActual, programObjectPID);
-
-            //Gallup
-            Document gallupExpected = createDocumentFromNode(radioTVMetadata,
-                                                             "//program/originals/gallup:gallup_original|//program/originals/gallup:tvmeterProgram");
-            Document gallupActual = domsClient.getDataStream(programObjectPID, GALLUP_ORIGINAL_DS_ID);
-            boolean gallupIdentical = compareDocuments(gallupExpected, gallupActual, programObjectPID);
-
-            //Broadcast
-            Document broadcastExpected = createDocumentFromNode(radioTVMetadata, "//program/pb:programBroadcast");
-            Document broadcastActual = domsClient.getDataStream(programObjectPID, PROGRAM_BROADCAST_DS_ID);
-            boolean broadcastIdentical = compareDocuments(broadcastExpected, broadcastActual, programObjectPID);
-
-            //Relations
-            boolean relationsIdentical = checkFileRelations(programObjectPID, filePIDs);
-
-            log.debug("Identicals: title={}, pbcore={}, ritzau={}, gallup={}, broadcast={}, relations={}",
-                      titleIdentical, pbcoreIdentical, ritzauIdentical, gallupIdentical, broadcastIdentical,
-                      relationsIdentical);
-
-            return titleIdentical && pbcoreIdentical && ritzauIdentical && gallupIdentical && broadcastIdentical &&
-                   relationsIdentical;
-        } catch (XMLParseException | ServerOperationFailed e) {
-            log.warn("Caught exception while checking semantic identicality of pid={}, so the objects are regarded as not identical",programObjectPID, e);
-            return false;
+    private void unpublished(String programObjectPID, ProgramStateStore.State written) {
+        if (written != null) {
+            unpublishedStates.put(programObjectPID, written);
         }
+    }
 
+    /**
+     * Get the state a program object will have when the program is written
+     *
+     * @return the state, or null if the program is missing a part, or could not be digested
+     */
+    private ProgramStateStore.State stateOf(ProgramRecord program, List<String> filePIDs) {
+        if (program.getTitle() == null) {
+            return null;
+        }
+        Map<String, String> digests = new HashMap<>();
+        try {
+            digests.put(PROGRAM_PBCORE_DS_ID, digestOf(program.getPbcore()));
+            digests.put(RITZAU_ORIGINAL_DS_ID, digestOf(program.getRitzauOriginal()));
+            digests.put(GALLUP_ORIGINAL_DS_ID, digestOf(program.getGallupOriginal()));
+            digests.put(PROGRAM_BROADCAST_DS_ID, digestOf(program.getProgramBroadcast()));
+        } catch (TransformerException e) {
+            log.debug("Failed to digest program, so its state is not stored", e);
+            return null;
+        }
+        if (digests.containsValue(null)) {
+            return null;
+        }
+        return new ProgramStateStore.State(program.getTitle(), digests, new HashSet<>(filePIDs));
     }
 
-    private String getDomsTitle(String programObjectPID) throws ServerOperationFailed {
-        //TODO This is so inefficient but I DO NOT WANT TO UPGRADE THE ENTIRE SYSTEM TO FIX IT
-        DigitalObject digitalObject = domsClient.getDigitalObjectFactory().getDigitalObject(programObjectPID);
-        return digitalObject.getTitle();
+    private String digestOf(Document fragment) throws TransformerException {
+        return fragment == null ? null : XmlDigest.digest(fragment);
     }
 
+    /**
+     * Check if the program is what was last written to the program object, as recorded in the program state store.
+     * DOMS is not read.
+     *
+     * @return true if the program is identical to the stored state
+     */
+    private boolean checkStoredIdentity(String programObjectPID, ProgramRecord program, List<String> filePIDs,
+                                        ProgramStateStore.State stored) {
+        ProgramStateStore.State expected = stateOf(program, filePIDs);
+        if (expected == null) {
+            return false;
+        }
+        List<String> differences = new ArrayList<>();
+        if (!stored.hasTitle(program.getTitle())) {
+            differences.add("title");
+        }
+        for (String datastreamID : Arrays.asList(PROGRAM_PBCORE_DS_ID, RITZAU_ORIGINAL_DS_ID, GALLUP_ORIGINAL_DS_ID,
+                                                 PROGRAM_BROADCAST_DS_ID)) {
+            if (!expected.getDigest(datastreamID).equals(stored.getDigest(datastreamID))) {
+                differences.add(datastreamID);
+            }
+        }
+        if (!expected.getFilePids().equals(stored.getFilePids())) {
+            differences.add("relations");
+        }
+        if (!differences.isEmpty()) {
+            log.debug("Object pid={} differs from its stored state in {}", programObjectPID, differences);
+        }
+        return differences.isEmpty();
+    }
 
-    private boolean compareDocuments(Document expected, Document actual, String pid){
-        Source control = Input.fromDocument(expected).build();
-        Source test = Input.fromDocument(actual).build();
+    /**
+     * Set the title, datastreams and file relations of a program object. These are independent, so the updates are
+     * in flight at the same time.
+     * <p>For an existing object, the title and datastreams already in DOMS are not written again, as each write makes
+     * a new version of the datastream. Datastreams are compared by their {@link XmlDigest}, using what the check
+     * read, or reading them if the check did not.</p>
+     *
+     * @param programDoms      the DOMS client to make the calls of this program through
+     * @param program          the program, as read from the source file
+     * @param programObjectPID the pid of the program object
+     * @param filePIDs         the pids of the files of the program
+     * @param filename         the name of the source file, for the doms audit comments
+     * @param existing         what is known of the object in DOMS, or null if the object was just created
+     */
+    private void updateProgram(AsyncDomsClient programDoms, ProgramRecord program, String programObjectPID,
+                               List<String> filePIDs, String filename, ObjectState existing) throws ServerOperationFailed, XMLParseException {
+        //Get everything to write first, so a program missing a part fails before any update is made
+        String programTitle = getTitle(program);
+        Document pbCore = getFragment(program.getPbcore(), PROGRAM_PBCORE_DS_ID);
+        Document ritzauOriginal = getFragment(program.getRitzauOriginal(), RITZAU_ORIGINAL_DS_ID);
+        Document gallupOriginal = getFragment(program.getGallupOriginal(), GALLUP_ORIGINAL_DS_ID);
+        Document programBroadcast = getFragment(program.getProgramBroadcast(), PROGRAM_BROADCAST_DS_ID);
 
-        Diff d = Util.xmlDiff(control,test);
+        String datastreamComment = Util.domsCommenter(filename, "updated datastream");
+        AtomicInteger skipped = new AtomicInteger();
+        new UpdateBatch()
+                //Set label as title
+                .add(() -> {
+                    if (existing != null && programTitle.equals(existing.getLabel())) {
+                        log.debug("Label of {} is already '{}', so not setting it", programObjectPID, programTitle);
+                        skipped.incrementAndGet();
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return setTitle(programDoms, programTitle, filename, programObjectPID);
+                })
+                //Add/update the datastreams
+                .add(() -> updateDatastream(programDoms, programObjectPID, PROGRAM_PBCORE_DS_ID, pbCore,
+                                            datastreamComment, existing, skipped))
+                .add(() -> updateDatastream(programDoms, programObjectPID, RITZAU_ORIGINAL_DS_ID, ritzauOriginal,
+                                            datastreamComment, existing, skipped))
+                .add(() -> updateDatastream(programDoms, programObjectPID, GALLUP_ORIGINAL_DS_ID, gallupOriginal,
+                                            datastreamComment, existing, skipped))
+                .add(() -> updateDatastream(programDoms, programObjectPID, PROGRAM_BROADCAST_DS_ID, programBroadcast,
+                                            datastreamComment, existing, skipped))
+                //Set the relations to the data files
+                .add(() -> setFileRelations(programDoms, programObjectPID, filePIDs, filename, existing))
+                .run();
+        if (existing != null) {
+            log.info("Updated program pid={}, skipped {} of 5 writes of title and datastreams, as DOMS had them already",
+                     programObjectPID, skipped.get());
+        }
+    }
 
-        if (!d.hasDifferences()) {
-            return true;
-        } else {
-            log.debug("Differences from object pid={}. Differences='{}' ", pid, d.toString());
+    /**
+     * Check if the program object in DOMS is what we would write. The title, datastreams and relations are fetched
+     * at the same time, and compared as they arrive. At the first difference, the reads still waiting for a permit
+     * are cancelled.
+     *
+     * @param programDoms the DOMS client to make the calls of this program through
+     * @param existing    where to remember what is read of the object. All the checks started are done when this
+     *                    returns, so an overwrite can use it
+     * @return true if the object is identical, false if it differs or could not be checked
+     */
+    private boolean checkSemanticIdentity(AsyncDomsClient programDoms, String programObjectPID, ProgramRecord program,
+                                          List<String> filePIDs, ObjectState existing) {
+        List<IdentityCheck> checks = new ArrayList<>();
+        //Title, as the DC title. The ingester only sets the label, so a DC title that differs is confirmed against
+        //the label, which loads the whole object
+        checks.add(() -> {
+            String expectedTitle = getTitle(program);
+            return programDoms.getDataStream(programObjectPID, DC_DS_ID).thenCompose(dc -> {
+                String dcTitle = getDcTitle(dc);
+                existing.setDcDataStream(dc);
+                if (expectedTitle.equals(dcTitle)) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                log.debug("DC title not identical, {} vs {}, so checking the object label", expectedTitle, dcTitle);
+                return getDomsTitle(programDoms, programObjectPID).thenApply(actualTitle -> {
+                    existing.setLabel(actualTitle);
+                    boolean titleIdentical = expectedTitle.equals(actualTitle);
+                    if (!titleIdentical) {
+                        log.debug("Titles not identical, {} vs {}", expectedTitle, actualTitle);
+                    }
+                    return titleIdentical;
+                });
+            });
+        });
+        //PBCore, Ritzau, Gallup and Broadcast
+        checks.add(() -> checkDatastream(programDoms, programObjectPID, PROGRAM_PBCORE_DS_ID, program.getPbcore(),
+                                          existing));
+        checks.add(() -> checkDatastream(programDoms, programObjectPID, RITZAU_ORIGINAL_DS_ID, program.getRitzauOriginal(),
+                                          existing));
+        checks.add(() -> checkDatastream(programDoms, programObjectPID, GALLUP_ORIGINAL_DS_ID, program.getGallupOriginal(),
+                                          existing));
+        checks.add(() -> checkDatastream(programDoms, programObjectPID, PROGRAM_BROADCAST_DS_ID, program.getProgramBroadcast(),
+                                          existing));
+        //Relations
+        checks.add(() -> checkFileRelations(programDoms, programObjectPID, filePIDs, existing));
+
+        try {
+            return allIdentical(checks, programDoms);
+        } catch (XMLParseException | ServerOperationFailed e) {
+            log.warn("Caught exception while checking semantic identicality of pid={}, so the objects are regarded as not identical",programObjectPID, e);
             return false;
         }
+
     }
 
+    /**
+     * A check of part of a program object in DOMS
+     */
+    @FunctionalInterface
+    private interface IdentityCheck {
+        /**
+         * @return the check, started
+         */
+        CompletableFuture<Boolean> identical();
+    }
 
-    private void setFileRelations(String programObjectPID, List<String> filePIDs, String filename) throws ServerOperationFailed, XMLParseException {
-        List<Relation> relations = domsClient.listObjectRelations(programObjectPID, HAS_FILE_RELATION);
-        HashSet<String> existingRels = new HashSet<String>();
-        for (Relation relation : relations) {
-            if (relation instanceof ObjectRelation) {
-                LiteralRelation relationWrapper = wrapAsLiteral((ObjectRelation) relation);
-                String predicate = relationWrapper.getPredicate(); //This should be HAS_FILE_RELATION
-                String objectPid = relationWrapper.getObject(); //This should be prograObjectPid
-                String subjectPid = relationWrapper.getSubjectPid();
-                log.debug("Found relation {},'{}',{}", objectPid, predicate, subjectPid);
-                if (!filePIDs.contains(subjectPid)) {
-                    log.debug("Removing relation relation {},'{}',{}", objectPid, predicate, subjectPid);
-                    String comment = Util.domsCommenter(filename, "removed relation '{0}' to '{1}'",
-                                                        predicate,
-                                                        subjectPid);
-                    domsClient.removeObjectRelation(relationWrapper, comment);
-                } else {
-                    existingRels.add(subjectPid);
+    /**
+     * Start the checks, in order. Their calls wait for permits in the same order, so when one finds a difference, the
+     * calls still waiting are cancelled, and the checks of them are not made. The calls already made are waited for,
+     * as the checks record what they read in the object state that an overwrite reads next.
+     *
+     * @param checks      the checks
+     * @param programDoms the DOMS client the checks make their calls through, and nothing else at the time
+     * @return true if all checks found the object identical
+     */
+    private boolean allIdentical(List<IdentityCheck> checks, AsyncDomsClient programDoms)
+            throws ServerOperationFailed, XMLParseException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        result.whenComplete((identical, failure) -> {
+            if (failure != null || !identical) {
+                programDoms.cancelWaiting();
+            }
+        });
+        List<CompletableFuture<Boolean>> started = new ArrayList<>();
+        for (IdentityCheck check : checks) {
+            if (result.isDone()) {
+                break;
+            }
+            CompletableFuture<Boolean> identical = check.identical();
+            identical.whenComplete((same, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else if (!same) {
+                    result.complete(false);
                 }
+            });
+            started.add(identical);
+        }
+        CompletableFuture<Void> settled = CompletableFuture.allOf(
+                started.toArray(new CompletableFuture[started.size()]));
+        settled.thenRun(() -> result.complete(true));
+        try {
+            settled.join();
+        } catch (CompletionException e) {
+            //The first failure is in the result
+        }
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServerOperationFailed) {
+                throw (ServerOperationFailed) cause;
+            } else if (cause instanceof XMLParseException) {
+                throw (XMLParseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
             }
         }
-        for (String filePID : filePIDs) {
-            if (!existingRels.contains(filePID)) {
-                log.debug("Adding relation {},'{}',{}", programObjectPID, HAS_FILE_RELATION, filePID);
-                String comment = Util.domsCommenter(filename, "added relation '{0}' to '{1}'",
-                                                    HAS_FILE_RELATION, filePID);
-                domsClient.addObjectRelation(programObjectPID, HAS_FILE_RELATION, filePID, comment);
+    }
 
-            }
+    private CompletableFuture<Boolean> checkDatastream(AsyncDomsClient programDoms, String programObjectPID,
+                                                       String datastreamID, Document fragment, ObjectState existing) {
+        Document expected = getFragment(fragment, datastreamID);
+        return programDoms.getDataStream(programObjectPID, datastreamID)
+                          .thenApply(actual -> compareDocuments(expected, actual, programObjectPID, datastreamID, existing));
+    }
+
+    /**
+     * Get the title from the DC datastream of a program object. This is a single small datastream, where the label
+     * needs the whole object to be loaded.
+     *
+     * @param dcDataStream the DC datastream
+     * @return the title, or null if the DC datastream has none
+     */
+    private String getDcTitle(Document dcDataStream) {
+        if (dcDataStream == null) {
+            return null;
         }
+        ProgramXPaths xPaths = ProgramXPaths.get();
+        NodeList titles = xPaths.selectNodeList(dcDataStream, xPaths.dcTitle);
+        return titles.getLength() == 0 ? null : titles.item(0).getTextContent();
     }
 
+    /**
+     * Get the label of a program object. This loads the whole object, so only use it when the DC title will not do.
+     */
+    private CompletableFuture<String> getDomsTitle(AsyncDomsClient programDoms, String programObjectPID) {
+        return programDoms.call(client -> {
+            DigitalObject digitalObject = client.getDigitalObjectFactory().getDigitalObject(programObjectPID);
+            return digitalObject.getTitle();
+        });
+    }
 
-    private boolean checkFileRelations(String programObjectPID, List<String> filePIDs) throws ServerOperationFailed, XMLParseException {
-        boolean identical = true;
 
-        List<Relation> relations = domsClient.listObjectRelations(programObjectPID, HAS_FILE_RELATION);
+    /**
+     * Compare the canonical digests of the documents. The full diff is only made if it is logged.
+     */
+    private boolean compareDocuments(Document expected, Document actual, String pid, String datastreamID,
+                                     ObjectState existing) {
+        try {
+            String actualDigest = XmlDigest.digest(actual);
+            existing.setDigest(datastreamID, actualDigest);
+            if (XmlDigest.digest(expected).equals(actualDigest)) {
+                return true;
+            }
+        } catch (TransformerException e) {
+            log.debug("Failed to digest datastream {} of object pid={}, so comparing it in full", datastreamID, pid, e);
+            return !diff(expected, actual).hasDifferences();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Differences in datastream {} from object pid={}. Differences='{}' ", datastreamID, pid,
+                      diff(expected, actual).toString());
+        }
+        return false;
+    }
 
-        HashSet<String> existingRels = new HashSet<String>();
-        for (Relation relation : relations) {
-            if (relation instanceof ObjectRelation) {
-                LiteralRelation relationWrapper = wrapAsLiteral((ObjectRelation) relation);
-                String predicate = relationWrapper.getPredicate(); //This should be HAS_FILE_RELATION
-                String objectPid = relationWrapper.getObject(); //This should be prograObjectPid
-                String subjectPid = relationWrapper.getSubjectPid();
-                log.debug("Found relation {},'{}',{}", objectPid, predicate, subjectPid);
-                if (!filePIDs.contains(subjectPid)) {
-                    log.debug("Found extranous relation {},'{}',{}", objectPid, predicate, subjectPid);
-                    identical = false;
-                } else {
-                    existingRels.add(subjectPid);
+    private Diff diff(Document expected, Document actual) {
+        Source control = Input.fromDocument(expected).build();
+        Source test = Input.fromDocument(actual).build();
+        return Util.xmlDiff(control, test);
+    }
+
+
+    /**
+     * Make the file relations of a program object those to the given files. Only the relations missing are added, and
+     * only those to other files are removed, and these changes are in flight at the same time.
+     * <p>The relations of an existing object are listed once per ingest, shared with the check. If the program state
+     * store knows the relations of the object, and none are to be removed, they are not listed at all.</p>
+     *
+     * @param existing what is known of the object in DOMS, or null if the object was just created
+     * @return the update, started
+     */
+    private CompletableFuture<Void> setFileRelations(AsyncDomsClient programDoms, String programObjectPID,
+                                                     List<String> filePIDs, String filename, ObjectState existing) {
+        Set<String> wanted = new LinkedHashSet<>(filePIDs);
+        Set<String> stored = existing == null ? null : existing.getFilePids();
+        if (stored != null && existing.getFileRelations() == null && wanted.containsAll(stored)) {
+            return changeFileRelations(programDoms, programObjectPID, wanted, Collections.emptyList(),
+                                       difference(wanted, stored), filename);
+        }
+        return getFileRelations(programDoms, programObjectPID, existing).thenCompose(fileRelations -> {
+            List<ObjectRelation> toRemove = new ArrayList<>();
+            for (Map.Entry<String, List<ObjectRelation>> fileRelation : fileRelations.entrySet()) {
+                if (!wanted.contains(fileRelation.getKey())) {
+                    toRemove.addAll(fileRelation.getValue());
                 }
             }
+            return changeFileRelations(programDoms, programObjectPID, wanted, toRemove,
+                                       difference(wanted, fileRelations.keySet()), filename);
+        });
+    }
+
+    private CompletableFuture<Void> changeFileRelations(AsyncDomsClient programDoms, String programObjectPID,
+                                                        Set<String> wanted, List<ObjectRelation> toRemove,
+                                                        Set<String> toAdd, String filename) {
+        if (toRemove.isEmpty() && toAdd.isEmpty()) {
+            log.debug("Object {} is already related to the files {}", programObjectPID, wanted);
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<Void>> changes = new ArrayList<>();
+        for (ObjectRelation relation : toRemove) {
+            LiteralRelation relationWrapper = wrapAsLiteral(relation);
+            String predicate = relationWrapper.getPredicate();
+            String subjectPid = relationWrapper.getSubjectPid();
+            log.debug("Removing relation relation {},'{}',{}", relationWrapper.getObject(), predicate, subjectPid);
+            String comment = Util.domsCommenter(filename, "removed relation '{0}' to '{1}'", predicate, subjectPid);
+            changes.add(programDoms.removeObjectRelation(relationWrapper, comment));
+        }
+        for (String filePID : toAdd) {
+            log.debug("Adding relation {},'{}',{}", programObjectPID, HAS_FILE_RELATION, filePID);
+            String comment = Util.domsCommenter(filename, "added relation '{0}' to '{1}'", HAS_FILE_RELATION,
+                                                filePID);
+            changes.add(programDoms.addObjectRelation(programObjectPID, HAS_FILE_RELATION, filePID, comment));
         }
-        for (String filePID : filePIDs) {
-            if (!existingRels.contains(filePID)) {
-                log.debug("Missing relation {},'{}',{}", programObjectPID, HAS_FILE_RELATION, filePID);
-                identical = false;
+        return CompletableFuture.allOf(changes.toArray(new CompletableFuture[changes.size()]));
+    }
+
+
+    private CompletableFuture<Boolean> checkFileRelations(AsyncDomsClient programDoms, String programObjectPID,
+                                                          List<String> filePIDs, ObjectState existing) {
+        Set<String> wanted = new HashSet<>(filePIDs);
+        return getFileRelations(programDoms, programObjectPID, existing).thenApply(fileRelations -> {
+            Set<String> related = fileRelations.keySet();
+            Set<String> extraneous = difference(related, wanted);
+            if (!extraneous.isEmpty()) {
+                log.debug("Found extranous relations {},'{}',{}", programObjectPID, HAS_FILE_RELATION, extraneous);
             }
+            Set<String> missing = difference(wanted, related);
+            if (!missing.isEmpty()) {
+                log.debug("Missing relations {},'{}',{}", programObjectPID, HAS_FILE_RELATION, missing);
+            }
+            return extraneous.isEmpty() && missing.isEmpty();
+        });
+    }
+
+    /**
+     * Get the file relations of a program object. They are listed from DOMS once, and then remembered in what is
+     * known of the object, so the check and the update use the same listing.
+     *
+     * @param existing what is known of the object in DOMS, or null if the object was just created
+     * @return the relations by the pid of the file related to
+     */
+    private CompletableFuture<Map<String, List<ObjectRelation>>> getFileRelations(AsyncDomsClient programDoms,
+                                                                                  String programObjectPID,
+                                                                                  ObjectState existing) {
+        Map<String, List<ObjectRelation>> known = existing == null ? null : existing.getFileRelations();
+        if (known != null) {
+            return CompletableFuture.completedFuture(known);
         }
-        return identical;
+        return programDoms.listObjectRelations(programObjectPID, HAS_FILE_RELATION).thenApply(relations -> {
+            Map<String, List<ObjectRelation>> fileRelations = new HashMap<>();
+            for (Relation relation : relations) {
+                if (relation instanceof ObjectRelation) {
+                    ObjectRelation fileRelation = (ObjectRelation) relation;
+                    log.debug("Found relation {},'{}',{}", fileRelation.getSubjectPid(), fileRelation.getPredicate(),
+                              fileRelation.getObjectPid());
+                    fileRelations.computeIfAbsent(fileRelation.getObjectPid(), pid -> new ArrayList<>())
+                                 .add(fileRelation);
+                }
+            }
+            if (existing != null) {
+                existing.setFileRelations(fileRelations);
+            }
+            return fileRelations;
+        });
+    }
+
+    private static Set<String> difference(Set<String> set, Set<String> other) {
+        Set<String> difference = new LinkedHashSet<>(set);
+        difference.removeAll(other);
+        return difference;
     }
 
 
@@ -315,58 +791,85 @@ public class RecordCreator {
         };
     }
 
-    private void addBroadcast(Document radioTVMetadata, String objectPID, String comment) throws ServerOperationFailed {
-        // Add the program broadcast datastream
-        log.debug("Adding/Updating {} datastream", PROGRAM_BROADCAST_DS_ID);
-        Document programBroadcastDocument = createDocumentFromNode(radioTVMetadata, "//program/pb:programBroadcast");
-        domsClient.updateDataStream(objectPID, PROGRAM_BROADCAST_DS_ID, programBroadcastDocument, comment);
-    }
-
-    private void addGallup(Document radioTVMetadata, String objectPID, String comment) throws ServerOperationFailed {
-        // Add the Gallup datastream
-        log.debug("Adding/Updating {} datastream", GALLUP_ORIGINAL_DS_ID);
-        Document gallupOriginalDocument = createDocumentFromNode(radioTVMetadata,
-                                                                 "//program/originals/gallup:gallup_original|//program/originals/gallup:tvmeterProgram");
-        domsClient.updateDataStream(objectPID, GALLUP_ORIGINAL_DS_ID, gallupOriginalDocument, comment);
+    /**
+     * Write a datastream, unless the object exists and already has the same datastream
+     *
+     * @param existing what is known of the object in DOMS, or null if the object was just created
+     * @param skipped  counts the writes skipped
+     * @return the update, started
+     */
+    private CompletableFuture<Void> updateDatastream(AsyncDomsClient programDoms, String objectPID, String datastreamID,
+                                                     Document document, String comment, ObjectState existing,
+                                                     AtomicInteger skipped) {
+        if (existing == null) {
+            return writeDatastream(programDoms, objectPID, datastreamID, document, comment);
+        }
+        return isInDoms(programDoms, objectPID, datastreamID, document, existing).thenCompose(inDoms -> {
+            if (inDoms) {
+                log.debug("Datastream {} of {} is unchanged, so not writing it", datastreamID, objectPID);
+                skipped.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            return writeDatastream(programDoms, objectPID, datastreamID, document, comment);
+        });
     }
 
-    private void addRitzau(Document radioTVMetadata, String objectPID, String comment) throws ServerOperationFailed {
-        // Add Ritzau datastream
-        log.debug("Adding/Updating {} datastream", RITZAU_ORIGINAL_DS_ID);
-        Document ritzauOriginalDocument = createDocumentFromNode(radioTVMetadata,
-                                                                 "//program/originals/ritzau:ritzau_original");
-        domsClient.updateDataStream(objectPID, RITZAU_ORIGINAL_DS_ID, ritzauOriginalDocument, comment);
+    private CompletableFuture<Void> writeDatastream(AsyncDomsClient programDoms, String objectPID, String datastreamID,
+                                                    Document document, String comment) {
+        log.debug("Adding/Updating {} datastream", datastreamID);
+        return programDoms.updateDataStream(objectPID, datastreamID, document, comment);
     }
 
-    private void addPBCore(Document radioTVMetadata, String objectPID, String comment) throws ServerOperationFailed {
-        // Add PBCore datastream
-        log.debug("Adding/Updating {} datastream", PROGRAM_PBCORE_DS_ID);
-        Document pbCoreDataStreamDocument = createDocumentFromNode(radioTVMetadata, PBCORE_DESCRIPTION_ELEMENT);
-        domsClient.updateDataStream(objectPID, PROGRAM_PBCORE_DS_ID, pbCoreDataStreamDocument, comment);
+    /**
+     * Check if an existing object already has a datastream, by comparing the digests. A failure to tell is taken as
+     * a difference, so the datastream is written.
+     */
+    private CompletableFuture<Boolean> isInDoms(AsyncDomsClient programDoms, String objectPID, String datastreamID,
+                                                Document document, ObjectState existing) {
+        String knownDigest = existing.getDigest(datastreamID);
+        CompletableFuture<Document> domsDocument = knownDigest == null
+                                                   ? programDoms.getDataStream(objectPID, datastreamID)
+                                                   : CompletableFuture.completedFuture(null);
+        return domsDocument.handle((domsDatastream, failure) -> {
+            try {
+                if (failure == null) {
+                    String domsDigest = knownDigest != null ? knownDigest : XmlDigest.digest(domsDatastream);
+                    return XmlDigest.digest(document).equals(domsDigest);
+                }
+            } catch (TransformerException | RuntimeException e) {
+                failure = e;
+            }
+            log.debug("Could not compare datastream {} of {} to the one in DOMS, so writing it", datastreamID,
+                      objectPID, failure);
+            return false;
+        });
     }
 
-    private void setTitle(Document radioTVMetadata, String filename, String objectPID) throws ServerOperationFailed {
-        String programTitle = getTitle(radioTVMetadata);
-
+    private CompletableFuture<Void> setTitle(AsyncDomsClient programDoms, String programTitle, String filename,
+                                             String objectPID) {
         log.debug("Found program title '{}', setting this as label on {}", programTitle, objectPID);
         String comment = Util.domsCommenter(filename, "added program title '{0}' object label", programTitle);
-        domsClient.setObjectLabel(objectPID, programTitle, comment);
+        return programDoms.setObjectLabel(objectPID, programTitle, comment);
     }
 
-    private String getTitle(Document radioTVMetadata) {
+    private String getTitle(ProgramRecord program) {
         // Get the program title from the PBCore metadata and use that as the
         // object label for this program object.
-        Node titleNode = xPathSelector.selectNode(radioTVMetadata,
-                                                  "//pbc:pbcoreTitle[pbc:titleType=\"titel\"]/pbc:title");
-        return titleNode.getTextContent();
+        String title = program.getTitle();
+        if (title == null) {
+            throw new IllegalArgumentException("Program has no pbcoreTitle of type 'titel'");
+        }
+        return title;
     }
 
-    private void prepareProgramForOverwrite(String existingPid, String filename, List<String> oldIdentifiers) throws ServerOperationFailed {
+    private void prepareProgramForOverwrite(String existingPid, String filename, List<String> oldIdentifiers,
+                                            Document dcDataStream) throws ServerOperationFailed {
         log.debug("Existing object {} will be overwritten", existingPid);
         String comment = Util.domsCommenter(filename, "unpublished object to allow for changes");
-        domsClient.unpublishObjects(comment, existingPid);
+        AsyncDomsClient.await(doms.unpublishObjects(comment, existingPid));
         log.debug("Existing object {} unpublished", existingPid);
-        addOldPids(existingPid, oldIdentifiers, filename);
+        addOldPids(existingPid, oldIdentifiers, filename, dcDataStream);
+        programPids.created(oldIdentifiers, existingPid);
         log.debug("Old identifiers added to program object {}", existingPid);
     }
 
@@ -374,14 +877,25 @@ public class RecordCreator {
         String programObjectPID;// Create a program object in the DOMS and update the PBCore metadata
         // datastream with the PBCore metadata from the pre-ingest file.
         String comment = Util.domsCommenter(filename, "creating Program Object");
-        programObjectPID = domsClient.createObjectFromTemplate(PROGRAM_TEMPLATE_PID, oldIdentifiers, comment);
+        programObjectPID = AsyncDomsClient.await(
+                doms.createObjectFromTemplate(PROGRAM_TEMPLATE_PID, oldIdentifiers, comment));
+        programPids.created(oldIdentifiers, programObjectPID);
         log.debug("Created new program object with pid {}", programObjectPID);
         return programObjectPID;
     }
 
-    private void addOldPids(String existingPid, List<String> oldIdentifiers, String filename) throws ServerOperationFailed {
-        Document dcDataStream = domsClient.getDataStream(existingPid, DC_DS_ID);
-        NodeList existingIDNodes = xPathSelector.selectNodeList(dcDataStream, "//dc:identifier");
+    /**
+     * Add the old identifiers missing from the DC datastream of a program object
+     *
+     * @param dcDataStream the DC datastream, if already read, or null to read it
+     */
+    private void addOldPids(String existingPid, List<String> oldIdentifiers, String filename, Document dcDataStream)
+            throws ServerOperationFailed {
+        if (dcDataStream == null) {
+            dcDataStream = AsyncDomsClient.await(doms.getDataStream(existingPid, DC_DS_ID));
+        }
+        ProgramXPaths xPaths = ProgramXPaths.get();
+        NodeList existingIDNodes = xPaths.selectNodeList(dcDataStream, xPaths.dcIdentifiers);
         Set<String> idsToAdd = new HashSet<String>(oldIdentifiers);
         for (int i = 0; i < existingIDNodes.getLength(); i++) {
             idsToAdd.remove(existingIDNodes.item(i).getTextContent());
@@ -400,23 +914,35 @@ public class RecordCreator {
         }
         log.debug("Updating {} datastream with new old identifiers {}", DC_DS_ID, oldIdentifiers);
         String comment = Util.domsCommenter(filename, "added old identifiers {0}", oldIdentifiers);
-        domsClient.updateDataStream(existingPid, DC_DS_ID, dcDataStream, comment);
+        AsyncDomsClient.await(doms.updateDataStream(existingPid, DC_DS_ID, dcDataStream, comment));
     }
 
     /**
-     * Utility method to create a document to ingest from a node.
+     * Get a datastream document of the program, failing if the source file did not have it.
      *
-     * @param radioTVMetadata Bibliographical metadata about the program.
-     * @param xpath           XPath expression to select and ingest in node.
-     * @return A document containing the metadata form the node selected by xpath.
+     * @param fragment the datastream document
+     * @param dsId     the datastream the document is for, only used for the error message
+     * @return the document
      */
-    private Document createDocumentFromNode(Document radioTVMetadata, String xpath) {
-        final Node nodeToIngest = xPathSelector.selectNode(radioTVMetadata, xpath);
+    private Document getFragment(Document fragment, String dsId) {
+        if (fragment == null) {
+            throw new IllegalArgumentException("Program has no metadata for datastream " + dsId);
+        }
+        return fragment;
+    }
 
-        // Build a data document for the data stream in the program object.
-        final Document document = documentBuilder.newDocument();
-        document.appendChild(document.importNode(nodeToIngest, true));
-        return document;
+    /**
+     * Read the parts of the program metadata that are ingested
+     *
+     * @param radioTVMetadata The document containing the program metadata.
+     * @return the program record
+     */
+    private ProgramRecord toProgramRecord(Document radioTVMetadata) {
+        try {
+            return ProgramRecord.fromDocument(radioTVMetadata);
+        } catch (TransformerException e) {
+            throw new RuntimeException("Failed to read program metadata", e);// will never be reached, it is already parsed
+        }
     }
 
     /**
@@ -428,73 +954,88 @@ public class RecordCreator {
      * @throws ServerOperationFailed Could not communicate with DOMS.
      */
     private String alreadyExistsInRepo(List<String> oldIdentifiers) throws ServerOperationFailed {
+        if (doms.getMaxInFlight() > 1 && oldIdentifiers.size() > 1) {
+            return firstFound(oldIdentifiers);
+        }
         for (String oldId : oldIdentifiers) {
-            try {
-                //TODO Remove this when fixed in doms central RI query
-                oldId = oldId.replaceAll("'", Matcher.quoteReplacement("\\'"));
-                List<String> pids = domsClient.getPidFromOldIdentifier(oldId);
-                if (!pids.isEmpty() && !pids.get(0).isEmpty()) {
-                    if (pids.size() > 1) {
-                        log.warn("Found more than one pids ({}) for old identifiers '{}', returning the first ({})", pids, oldId, pids.get(0));
-                    }
-                    return pids.get(0);
-                }
-            } catch (NoObjectFound e) {
-                // Ignore, then
+            String pid = programPids.get(oldId, id -> AsyncDomsClient.await(lookupOldIdentifier(doms, id)));
+            if (pid != null) {
+                return pid;
             }
         }
         return null;
     }
 
     /**
-     * Find old identifiers in program metadata, and use them for looking up programs in DOMS.
+     * Lookup a program in DOMS by all its old identifiers at the same time. A new program is found by none of them, so
+     * this takes the time of the slowest lookup rather than the sum of them all.
+     * <p>The pid is chosen in the order of the old identifiers, as when they are looked up one after another, so the
+     * program found does not depend on which lookup answers first when they find different programs. The pid is
+     * returned as soon as it is found by an identifier whose earlier identifiers all found nothing. The lookups still
+     * waiting for a permit are then cancelled. Those already made cannot be stopped, so their answers are ignored.</p>
+     * <p>Ingests of programs sharing an old identifier are sequenced, so no other ingest looks up the same identifiers
+     * at the same time.</p>
      *
-     * @param radioTVMetadata The document containing the program metadata.
-     * @return Old indentifiers found.
+     * @param oldIdentifiers List of old identifiers to look up.
+     * @return PID of program, if found. Null otherwise
+     * @throws ServerOperationFailed if a lookup failed before a pid was found by an earlier identifier
      */
-    private List<String> getOldIdentifiers(Document radioTVMetadata) {
-        List<String> result = new ArrayList<String>();
-
-        Node radioTVPBCoreElement = xPathSelector.selectNode(radioTVMetadata, PBCORE_DESCRIPTION_ELEMENT);
-
-        Node oldRitzauPIDNode = xPathSelector.selectNode(radioTVPBCoreElement,
-                                                         "pbc:pbcoreIdentifier[pbc:identifierSource=\"id\"]/pbc:identifier");
-
-        if (oldRitzauPIDNode != null && !oldRitzauPIDNode.getTextContent().isEmpty()) {
-            result.add(oldRitzauPIDNode.getTextContent());
+    private String firstFound(List<String> oldIdentifiers) throws ServerOperationFailed {
+        AsyncDomsClient lookupDoms = doms.limitedTo(oldIdentifiers.size());
+        CompletableFuture<String> found = CompletableFuture.completedFuture(null);
+        for (String oldId : oldIdentifiers) {
+            CompletableFuture<String> lookup = programPids.getAsync(oldId, id -> lookupOldIdentifier(lookupDoms, id));
+            found = found.thenCompose(pid -> pid != null ? CompletableFuture.completedFuture(pid) : lookup);
         }
+        //Cancelled as the pid is found, before the permit of the lookup that found it is given to the next
+        found.whenComplete((pid, failure) -> lookupDoms.cancelWaiting());
+        return AsyncDomsClient.await(found);
+    }
 
-        Node oldGallupPIDNode = xPathSelector.selectNode(radioTVPBCoreElement,
-                                                         "pbc:pbcoreIdentifier[pbc:identifierSource=\"tvmeter\"]/pbc:identifier");
-
-        if (oldGallupPIDNode != null && !oldGallupPIDNode.getTextContent().isEmpty()) {
-            result.add(oldGallupPIDNode.getTextContent());
-        }
-        return result;
+    /**
+     * Lookup a program in DOMS by one old identifier.
+     *
+     * @param lookupDoms the DOMS client to make the lookup through
+     * @param oldId      the old identifier
+     * @return the lookup, giving the PID of program, if found. Null otherwise
+     */
+    private CompletableFuture<String> lookupOldIdentifier(AsyncDomsClient lookupDoms, String oldId) {
+        //TODO Remove this when fixed in doms central RI query
+        String escapedId = oldId.replaceAll("'", Matcher.quoteReplacement("\\'"));
+        return lookupDoms.getPidFromOldIdentifier(escapedId).handle((pids, failure) -> {
+            if (failure instanceof NoObjectFound) {
+                return null; // Ignore, then
+            } else if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            if (!pids.isEmpty() && !pids.get(0).isEmpty()) {
+                if (pids.size() > 1) {
+                    log.warn("Found more than one pids ({}) for old identifiers '{}', returning the first ({})", pids, escapedId, pids.get(0));
+                }
+                return pids.get(0);
+            }
+            return null;
+        });
     }
 
     /**
      * Get the PIDs for all the file URLs.
      *
-     * @param radioTVMetadata Metadata XML document containing the file information.
+     * @param program The program metadata containing the file information.
      * @return A <code>List</code> of PIDs of the radio-tv file objects found in DOMS.
      * @throws MalformedURLException if a file element contains an invalid URL.
      * @throws ServerOperationFailed if looking up file URL failed.
      * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
      */
-    private List<String> getFilePids(Document radioTVMetadata) throws MalformedURLException, NoObjectFound, ServerOperationFailed {
-        // Get the recording files XML element and process the file information.
-        NodeList recordingFileURLs = xPathSelector.selectNodeList(radioTVMetadata, "//program/fileUrls/fileUrl");
-
+    private List<String> getFilePids(ProgramRecord program) throws MalformedURLException, NoObjectFound, ServerOperationFailed {
         // Find the pids for all referenced file urls.
         List<String> fileObjectPIDs = new ArrayList<String>();
-        for (int nodeIndex = 0; nodeIndex < recordingFileURLs.getLength(); nodeIndex++) {
+        for (String fileUrl : program.getFileUrls()) {
             // Lookup file object.
-            Node item = recordingFileURLs.item(nodeIndex);
-            String itemTextContent = item.getTextContent();
-            log.debug("Found file url {} from metadata", itemTextContent);
-            URL fileURL = new URL(itemTextContent);
-            String fileObjectPID = domsClient.getFileObjectPID(fileURL);
+            log.debug("Found file url {} from metadata", fileUrl);
+            URL fileURL = new URL(fileUrl);
+            String fileObjectPID = filePidCache.get(fileUrl,
+                                                    url -> AsyncDomsClient.awaitLookup(doms.getFileObjectPID(fileURL)));
             fileObjectPIDs.add(fileObjectPID);
             log.debug("Found file object pid {} for file url {}", fileObjectPID, fileURL);
         }
@@ -0,0 +1,102 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Independent updates of an object in DOMS, in flight at the same time, so the time taken is that of the slowest
+ * update rather than the sum of them all.
+ * <p>The updates are started in the order they were added, and are made by the {@link AsyncDomsClient}, so no thread
+ * waits for each. How many are in flight at a time is bounded by that client.</p>
+ * <p>When an update has failed, the updates not yet started are skipped. The first failure is thrown when the started
+ * updates are done, with any later failures added as suppressed.</p>
+ */
+final class UpdateBatch {
+
+    /**
+     * An update in DOMS
+     */
+    @FunctionalInterface
+    interface Update {
+        /**
+         * @return the update, started
+         */
+        CompletableFuture<?> start();
+    }
+
+    private final List<Update> updates = new ArrayList<>();
+
+    /**
+     * Add an update to the batch
+     *
+     * @param update the update
+     * @return this batch
+     */
+    UpdateBatch add(Update update) {
+        updates.add(update);
+        return this;
+    }
+
+    /**
+     * Start the updates, and wait for them to be done
+     *
+     * @throws ServerOperationFailed if an update failed with this
+     * @throws XMLParseException     if an update failed with this
+     */
+    void run() throws ServerOperationFailed, XMLParseException {
+        List<CompletableFuture<?>> started = new ArrayList<>();
+        for (Update update : updates) {
+            if (started.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                break;
+            }
+            try {
+                started.add(update.start());
+            } catch (RuntimeException e) {
+                CompletableFuture<?> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                started.add(failed);
+            }
+        }
+        List<Throwable> failures = new ArrayList<>();
+        for (CompletableFuture<?> update : started) {
+            try {
+                //join is not interrupted. The updates are remote calls, so they are waited for anyway, to not leave
+                //them running unobserved.
+                update.join();
+            } catch (CompletionException e) {
+                failures.add(e.getCause());
+            } catch (RuntimeException e) {
+                failures.add(e);
+            }
+        }
+        throwFailures(failures);
+    }
+
+    private void throwFailures(List<Throwable> failures) throws ServerOperationFailed, XMLParseException {
+        if (failures.isEmpty()) {
+            return;
+        }
+        Throwable first = failures.get(0);
+        for (Throwable later : failures.subList(1, failures.size())) {
+            if (later != first) {
+                first.addSuppressed(later);
+            }
+        }
+        if (first instanceof ServerOperationFailed) {
+            throw (ServerOperationFailed) first;
+        } else if (first instanceof XMLParseException) {
+            throw (XMLParseException) first;
+        } else if (first instanceof RuntimeException) {
+            throw (RuntimeException) first;
+        } else if (first instanceof Error) {
+            throw (Error) first;
+        } else {
+            throw new RuntimeException(first);// will never be reached, but no matter
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digest of the canonical form of an xml document. Two documents have the same digest if they are identical, except
+ * for comments, whitespace around text, namespace prefixes and the order of attributes, i.e. if
+ * {@link Util#xmlDiff(javax.xml.transform.Source, javax.xml.transform.Source)} finds no differences.
+ * <p>The document is streamed through a SAX parser, so it is never held in memory. Documents already in memory are
+ * walked as SAX events, so they give the same digest as when parsed.</p>
+ */
+public class XmlDigest {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final ThreadLocal<SAXParser> parsers = ThreadLocal.withInitial(XmlDigest::newParser);
+
+    private static final ThreadLocal<Transformer> transformers = ThreadLocal.withInitial(XmlDigest::newTransformer);
+
+    private XmlDigest() {
+    }
+
+    /**
+     * Calculate the digest of an xml file
+     *
+     * @param file the file
+     * @return the digest as a hex string
+     * @throws IOException  if the file could not be read
+     * @throws SAXException if the file is not well formed xml
+     */
+    public static String digest(Path file) throws IOException, SAXException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return digest(new InputSource(in));
+        }
+    }
+
+    /**
+     * Calculate the digest of an xml document
+     *
+     * @param source the document
+     * @return the digest as a hex string
+     * @throws IOException  if the document could not be read
+     * @throws SAXException if the document is not well formed xml
+     */
+    public static String digest(InputSource source) throws IOException, SAXException {
+        SAXParser parser = parsers.get();
+        parser.reset();
+        CanonicalHandler handler = new CanonicalHandler();
+        parser.parse(source, handler);
+        return toHex(handler.digest.digest());
+    }
+
+    /**
+     * Calculate the digest of an xml document in memory
+     *
+     * @param document the document
+     * @return the digest as a hex string
+     * @throws TransformerException if the document could not be walked
+     */
+    public static String digest(Document document) throws TransformerException {
+        Transformer transformer = transformers.get();
+        transformer.reset();
+        CanonicalHandler handler = new CanonicalHandler();
+        transformer.transform(new DOMSource(document), new SAXResult(handler));
+        return toHex(handler.digest.digest());
+    }
+
+    private static Transformer newTransformer() {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);// will never be reached, but no matter
+        }
+    }
+
+    private static SAXParser newParser() {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            return factory.newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new RuntimeException(e);// will never be reached, but no matter
+        }
+    }
+
+    /**
+     * @param bytes a digest
+     * @return the digest in the hex form the digests are given in
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param hex a digest in hex form
+     * @return the bytes of the digest
+     * @throws IllegalArgumentException if the digest is not hex
+     */
+    static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Digest '" + hex + "' is not hex");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Digest '" + hex + "' is not hex");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Feeds the canonical form of the document to the digest. Each node is written as a type marker followed by its
+     * fields, each terminated by a zero character, so different documents cannot produce the same stream.
+     * Comments are not reported to a plain content handler, so they are left out.
+     */
+    private static class CanonicalHandler extends DefaultHandler {
+
+        private final MessageDigest digest;
+        /**
+         * The text since the last element boundary, as SAX can split text in several calls
+         */
+        private final StringBuilder text = new StringBuilder();
+
+        private CanonicalHandler() {
+            try {
+                digest = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);// will never be reached, every JVM has SHA-256
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            flushText();
+            update('E', uri, localName);
+            //Sort the attributes, as their order does not matter. Namespace declarations are not reported as attributes
+            Map<String, String> sorted = new TreeMap<>();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                if (isNamespaceDeclaration(attributes.getQName(i))) {
+                    continue; //Reported as attributes when walking a document in memory, but only prefixes differ
+                }
+                sorted.put(attributes.getURI(i) + '\0' + attributes.getLocalName(i), attributes.getValue(i));
+            }
+            for (Map.Entry<String, String> attribute : sorted.entrySet()) {
+                update('A', attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            flushText();
+            update('/');
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            //Ignored, as whitespace between elements is not significant
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) {
+            flushText();
+            update('P', target, data);
+        }
+
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) {
+            //Never fetch external entities, they are not part of the content we compare
+            return new InputSource(new StringReader(""));
+        }
+
+        private boolean isNamespaceDeclaration(String qName) {
+            return qName.equals(XMLConstants.XMLNS_ATTRIBUTE)
+                   || qName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+        }
+
+        /**
+         * Write the text gathered so far, trimmed. Whitespace only text is dropped.
+         */
+        private void flushText() {
+            String trimmed = text.toString().trim();
+            text.setLength(0);
+            if (!trimmed.isEmpty()) {
+                update('T', trimmed);
+            }
+        }
+
+        private void update(char type, String... fields) {
+            digest.update((byte) type);
+            for (String field : fields) {
+                digest.update(field.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+    }
+}
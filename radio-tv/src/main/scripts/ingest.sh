@@ -15,6 +15,7 @@ COLDFOLDER=$BASEDIR/coldfolder
 LUKEFOLDER=$BASEDIR/lukewarm
 HOTFOLDER=$BASEDIR/hotfolder
 STOPFOLDER=$BASEDIR/stopfolder
+STATEFOLDER=$BASEDIR/statefolder
 WSDL=http://alhena:7980/centralWebservice-service/central/?wsdl
 USERNAME=fedoraAdmin
 PASSWORD=fedoraAdminPass
@@ -25,6 +26,9 @@ MAXFAILS=10
 EXPORTFOLDER=$BASEDIR/files/export
 THREADS=4
 WAIT=1000
+QUIETPERIOD=2000
+PROGRAMPIDCACHE=positive
+MAXDOMSREQUESTS=24
 
 
 # Override the config params from ingest_config.sh
@@ -39,7 +43,7 @@ source $BASEDIR/config/ingest_config.sh
 # ("don't use the getopt command if the arguments may contain whitespace
 #  characters")
 #
-while getopts c:l:h:w:u:p:s:o:n:t:f:v: opt
+while getopts c:l:h:w:u:p:s:o:n:t:q:f:v:r:m: opt
 do
     case "$opt" in
       c)  COLDFOLDER="$OPTARG";;
@@ -52,13 +56,17 @@ do
       o)  OVERWRITE="$OPTARG";;
       n)  THREADS="$OPTARG";;
       t)  WAIT="$OPTARG";;
+      q)  QUIETPERIOD="$OPTARG";;
       f)  MAXFAILS="$OPTARG";;
       v)  VERIFY="$OPTARG";;
+      r)  PROGRAMPIDCACHE="$OPTARG";;
+      m)  MAXDOMSREQUESTS="$OPTARG";;
       \?)		# unknown flag
       	  echo >&2 \
 	  "usage: $0 [-c coldfolder] [-l lukefolder] [-h hotfolder] [-w wsdl] \
 	  [-u username] [-p password] [-s preingestschema] [-o true|false] \
-	  [-n numThreads] [-t threadPollInterval] [-f maxFails] [-v true|false]"
+	  [-n numThreads] [-t threadPollInterval] [-q quietPeriod] [-f maxFails] [-v true|false] \
+	  [-r none|positive|exclusive] [-m maxDomsRequests]"
 	  exit 1;;
     esac
 done
@@ -71,6 +79,7 @@ java -Dlogback.configurationFile=$BASEDIR/config/logback.xml \
     -lukefolder=$LUKEFOLDER \
     -coldfolder=$COLDFOLDER \
     -stopfolder=$STOPFOLDER \
+    -statefolder=$STATEFOLDER \
     -wsdl=$WSDL \
     -username=$USERNAME \
     -password=$PASSWORD \
@@ -78,5 +87,8 @@ java -Dlogback.configurationFile=$BASEDIR/config/logback.xml \
     -overwrite=$OVERWRITE \
     -numthreads=$THREADS \
     -threadwaittime=$WAIT \
+    -quietperiod=$QUIETPERIOD \
     -maxFails=$MAXFAILS \
-    -check=$VERIFY
+    -check=$VERIFY \
+    -programpidcache=$PROGRAMPIDCACHE \
+    -maxdomsrequests=$MAXDOMSREQUESTS
@@ -0,0 +1,147 @@
+package dk.statsbiblioteket.doms.folderwatching;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the ordering guarantees of the KeyedExecutor
+ */
+public class KeyedExecutorTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSameKeyRunsInOrder() throws Exception {
+        KeyedExecutor<String> executor = new KeyedExecutor<>(pool);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final int number = i;
+            futures.add(executor.submit("key", () -> {
+                Thread.sleep(5);
+                order.add(number);
+                return number;
+            }));
+        }
+        for (CompletableFuture<Integer> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, order);
+        assertEquals(0, executor.getKeyCount());
+    }
+
+    @Test
+    public void testDifferentKeysRunInParallel() throws Exception {
+        KeyedExecutor<String> executor = new KeyedExecutor<>(pool);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+
+        CompletableFuture<Boolean> first = executor.submit("first", () -> {
+            bothRunning.countDown();
+            return bothRunning.await(5, TimeUnit.SECONDS);
+        });
+        CompletableFuture<Boolean> second = executor.submit("second", () -> {
+            bothRunning.countDown();
+            return bothRunning.await(5, TimeUnit.SECONDS);
+        });
+
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertTrue(second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSharedKeyOfSeveralWaits() throws Exception {
+        KeyedExecutor<String> executor = new KeyedExecutor<>(pool);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> blocker = executor.submit("ritzau", () -> {
+            release.await();
+            return "blocker";
+        });
+        CompletableFuture<String> waiter = executor.submit(Arrays.asList("tvmeter", "ritzau"), () -> "waiter");
+
+        Thread.sleep(200);
+        assertFalse("Task sharing a key must wait for the earlier task", waiter.isDone());
+
+        release.countDown();
+        assertEquals("waiter", waiter.get(10, TimeUnit.SECONDS));
+        assertEquals("blocker", blocker.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallRunsAfterFailedTask() throws Exception {
+        KeyedExecutor<String> executor = new KeyedExecutor<>(pool);
+
+        CompletableFuture<String> failing = executor.submit("key", () -> {
+            throw new IllegalStateException("failed");
+        });
+        String result = executor.call(Arrays.asList("key", "key"), () -> "after");
+
+        assertEquals("after", result);
+        try {
+            failing.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, executor.getKeyCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedTaskReleasesKeys() throws Exception {
+        KeyedExecutor<String> executor = new KeyedExecutor<>(pool);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = executor.submit("key", () -> {
+            release.await(5, TimeUnit.SECONDS);
+            return "running";
+        });
+        CompletableFuture<String> waiting = executor.submit(Arrays.asList("key", "other"), () -> "waiting");
+        //The waiting task is rejected when the running task is done, as the executor is shut down by then
+        pool.shutdown();
+        release.countDown();
+        assertEquals("running", running.get());
+        try {
+            waiting.get();
+            fail("The task should be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        //Later tasks of the keys are not stuck behind the rejected task
+        assertEquals("after", executor.call(Arrays.asList("key", "other"), () -> "after"));
+        assertEquals(0, executor.getKeyCount());
+    }
+}
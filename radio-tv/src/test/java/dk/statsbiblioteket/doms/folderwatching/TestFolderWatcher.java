@@ -32,12 +32,20 @@ import org.junit.Test;
 import org.mockito.InOrder;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -323,6 +331,228 @@ public class TestFolderWatcher {
 
 
 
+    @Test
+    public void testStopFileBeforeStart() throws Exception {
+
+        folderToWatch = Files.createTempDirectory("folderToWatch");
+        stopFolder = Files.createTempDirectory("stopFolder");
+        Files.createFile(stopFolder.resolve("stoprunning"));
+
+        FolderWatcherClient FolderWatcherClient = mock(FolderWatcherClient.class);
+        FolderWatcher FolderWatcher = new FolderWatcher(folderToWatch, 1000, FolderWatcherClient, 1, stopFolder);
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        background.submit(FolderWatcher);
+        background.shutdown();
+
+        //The stop file is seen before the watcher starts waiting for events
+        assertTrue(background.awaitTermination(500, TimeUnit.MILLISECONDS));
+        verify(FolderWatcherClient).close();
+    }
+
+
+
+    @Test
+    public void testWorkersReusedBetweenBatches() throws Exception {
+
+        folderToWatch = Files.createTempDirectory("folderToWatch");
+        stopFolder = Files.createTempDirectory("stopFolder");
+
+        Set<Thread> workers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        FolderWatcherClient FolderWatcherClient = new FolderWatcherClient() {
+            @Override
+            public void fileAdded(Path addedFile) throws Exception {
+                super.fileAdded(addedFile);
+                workers.add(Thread.currentThread());
+            }
+        };
+
+        int numThreads = 2;
+        FolderWatcher FolderWatcher = new FolderWatcher(folderToWatch, 1000, FolderWatcherClient, numThreads, stopFolder);
+
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+
+        background.submit(FolderWatcher);
+        background.shutdown();
+
+        // Wait for the scanner to start up
+        Thread.sleep(1000);
+
+        //Create the files one at a time, so they arrive in separate batches
+        for (int i = 0; i < 5; i++) {
+            createTempFile(i);
+            Thread.sleep(300);
+        }
+        Thread.sleep(1000);
+
+        assertEquals(5, FolderWatcher.getCompletedCount());
+        assertEquals(0, FolderWatcher.getQueuedCount());
+
+        //Stop the scanner
+        FolderWatcher.setClosed(true);
+        assertTrue(background.awaitTermination(2, TimeUnit.SECONDS));
+
+        assertTrue("Workers should be reused between batches, but saw " + workers, workers.size() <= numThreads);
+    }
+
+
+
+    @Test
+    public void testSlowFileDoesNotBlockWatcher() throws Exception {
+
+        folderToWatch = Files.createTempDirectory("folderToWatch");
+        stopFolder = Files.createTempDirectory("stopFolder");
+
+        CountDownLatch slowFileRelease = new CountDownLatch(1);
+        CountDownLatch fastFileHandled = new CountDownLatch(1);
+
+        FolderWatcherClient FolderWatcherClient = new FolderWatcherClient() {
+            @Override
+            public void fileAdded(Path addedFile) throws Exception {
+                super.fileAdded(addedFile);
+                if (addedFile.getFileName().toString().equals("0.xml")) {
+                    slowFileRelease.await();
+                } else {
+                    fastFileHandled.countDown();
+                }
+            }
+        };
+
+        FolderWatcher FolderWatcher = new FolderWatcher(folderToWatch, 1000, FolderWatcherClient, 2, stopFolder);
+
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+
+        background.submit(FolderWatcher);
+        background.shutdown();
+
+        // Wait for the scanner to start up
+        Thread.sleep(1000);
+
+        createTempFile(0);
+        Thread.sleep(500);
+        createTempFile(1);
+
+        //The second file must be discovered and handled while the first is still being handled
+        assertTrue(fastFileHandled.await(5, TimeUnit.SECONDS));
+
+        slowFileRelease.countDown();
+
+        //Stop the scanner
+        FolderWatcher.setClosed(true);
+        assertTrue(background.awaitTermination(2, TimeUnit.SECONDS));
+    }
+
+
+
+    @Test
+    public void testManyPreexistingFiles() throws Exception {
+
+        folderToWatch = Files.createTempDirectory("folderToWatch");
+        stopFolder = Files.createTempDirectory("stopFolder");
+
+        //More files than are synced in one chunk
+        int numFiles = 2500;
+        for (int i = 0; i < numFiles; i++) {
+            createTempFile(i);
+        }
+
+        Set<Path> handled = ConcurrentHashMap.newKeySet();
+        CountDownLatch allHandled = new CountDownLatch(numFiles);
+        FolderWatcherClient FolderWatcherClient = new FolderWatcherClient() {
+            @Override
+            public void fileAdded(Path addedFile) throws Exception {
+                super.fileAdded(addedFile);
+                if (handled.add(addedFile)) {
+                    allHandled.countDown();
+                }
+            }
+        };
+
+        FolderWatcher FolderWatcher = new FolderWatcher(folderToWatch, 1000, FolderWatcherClient, 4, stopFolder, 100);
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        background.submit(FolderWatcher);
+        background.shutdown();
+
+        assertTrue(allHandled.await(20, TimeUnit.SECONDS));
+        assertEquals(numFiles, handled.size());
+
+        //Stop the scanner
+        FolderWatcher.setClosed(true);
+        assertTrue(background.awaitTermination(2, TimeUnit.SECONDS));
+    }
+
+
+
+    @Test
+    public void testFileHandledWhenStable() throws Exception {
+
+        folderToWatch = Files.createTempDirectory("folderToWatch");
+        stopFolder = Files.createTempDirectory("stopFolder");
+
+        List<String> handledContents = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch movedFileHandled = new CountDownLatch(1);
+
+        FolderWatcherClient FolderWatcherClient = new FolderWatcherClient() {
+            @Override
+            public void fileAdded(Path addedFile) throws Exception {
+                super.fileAdded(addedFile);
+                if (addedFile.getFileName().toString().equals("moved.xml")) {
+                    movedFileHandled.countDown();
+                } else {
+                    handledContents.add(new String(Files.readAllBytes(addedFile), StandardCharsets.UTF_8));
+                }
+            }
+
+            @Override
+            public void fileModified(Path modifiedFile) throws Exception {
+                super.fileModified(modifiedFile);
+                handledContents.add(new String(Files.readAllBytes(modifiedFile), StandardCharsets.UTF_8));
+            }
+        };
+
+        FolderWatcher FolderWatcher = new FolderWatcher(folderToWatch, 1000, FolderWatcherClient, 2, stopFolder,
+                                                        1000, 500);
+
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+
+        background.submit(FolderWatcher);
+        background.shutdown();
+
+        // Wait for the scanner to start up
+        Thread.sleep(1000);
+
+        //Write a file slowly, as if it was being copied in
+        Path slowFile = folderToWatch.resolve("slow.xml");
+        for (int i = 0; i < 10; i++) {
+            Files.write(slowFile, Integer.toString(i).getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Thread.sleep(100);
+        }
+        assertTrue("File must not be handled while being written, but saw " + handledContents,
+                   handledContents.isEmpty());
+
+        //A file with an old timestamp, moved into the folder, is stable at once
+        Path oldFile = Files.createFile(stopFolder.resolve("moved.xml"));
+        Files.setLastModifiedTime(oldFile, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        Files.move(oldFile, folderToWatch.resolve("moved.xml"), StandardCopyOption.ATOMIC_MOVE);
+        assertTrue(movedFileHandled.await(400, TimeUnit.MILLISECONDS));
+
+        //Wait for the quiet period to pass
+        Thread.sleep(1500);
+        assertEquals(Collections.singletonList("0123456789"), handledContents);
+
+        //Stop the scanner
+        FolderWatcher.setClosed(true);
+        assertTrue(background.awaitTermination(2, TimeUnit.SECONDS));
+    }
+
+
+
     private Path createTempFile() throws IOException {
         Path tempTestFile = folderToWatch.resolve(UUID.randomUUID().toString() + ".xml");
         Files.createFile(tempTestFile);
@@ -0,0 +1,107 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test that the calls to DOMS are bounded in flight, and that failures are reported
+ */
+public class AsyncDomsClientTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testBoundsCallsInFlight() throws Exception {
+        AsyncDomsClient doms = new AsyncDomsClient(mock(DomsWSClient.class), executor, 2);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int call = i;
+            calls.add(doms.call(client -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                inFlight.decrementAndGet();
+                return call;
+            }));
+        }
+        started.await();
+        //The calls beyond the max wait in the queue
+        assertFalse(calls.get(5).isDone());
+        release.countDown();
+        for (int i = 0; i < calls.size(); i++) {
+            assertEquals(i, (int) AsyncDomsClient.await(calls.get(i)));
+        }
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testLimitedClientLeavesCallsForOthers() throws Exception {
+        AsyncDomsClient doms = new AsyncDomsClient(mock(DomsWSClient.class), executor, 4);
+        AsyncDomsClient limited = doms.limitedTo(2);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int call = i;
+            calls.add(limited.call(client -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                inFlight.decrementAndGet();
+                return call;
+            }));
+        }
+        started.await();
+        //The limited calls wait in their own queue, so another call still gets in flight
+        assertEquals("other", AsyncDomsClient.await(doms.call(client -> "other")));
+        assertFalse(calls.get(5).isDone());
+        release.countDown();
+        for (int i = 0; i < calls.size(); i++) {
+            assertEquals(i, (int) AsyncDomsClient.await(calls.get(i)));
+        }
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void testAwaitThrowsFailure() throws Exception {
+        DomsWSClient domsClient = mock(DomsWSClient.class);
+        ServerOperationFailed failure = mock(ServerOperationFailed.class);
+        doThrow(failure).when(domsClient).setObjectLabel("uuid:1", "Damages", "comment");
+        AsyncDomsClient doms = new AsyncDomsClient(domsClient, Runnable::run, 1);
+        try {
+            AsyncDomsClient.await(doms.setObjectLabel("uuid:1", "Damages", "comment"));
+            fail("The failure should be thrown");
+        } catch (ServerOperationFailed e) {
+            assertSame(failure, e);
+        }
+    }
+}
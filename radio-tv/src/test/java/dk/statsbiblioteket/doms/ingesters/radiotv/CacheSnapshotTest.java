@@ -0,0 +1,135 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test that a cache started from the snapshot of an earlier cache remembers what the earlier cache did
+ */
+public class CacheSnapshotTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private Path stateFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        stateFolder = Files.createTempDirectory("stateFolder");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(stateFolder.toFile());
+    }
+
+    @Test
+    public void testWarmStart() throws Exception {
+        Path file = stateFolder.resolve("test.snapshot");
+        LookupCache<String, String> earlier = new LookupCache<>("test", 10, 60000, 100, now::get);
+        for (String key : new String[]{"b", "æ", "a", "c"}) {
+            earlier.get(key, this::lookup);
+        }
+        CacheSnapshot.write(earlier, file);
+
+        CacheSnapshot snapshot = CacheSnapshot.open(file);
+        assertEquals(4, snapshot.size());
+        assertEquals("pid:æ", snapshot.get("æ").value);
+        assertNull(snapshot.get("d"));
+
+        LookupCache<String, String> later = new LookupCache<>("test", 10, 60000, 100, now::get);
+        later.useSnapshot(snapshot);
+        lookups.set(0);
+        assertEquals("pid:a", later.get("a", this::lookup));
+        assertEquals("pid:c", later.getIfPresent("c"));
+        assertEquals("pid:d", later.get("d", this::lookup));
+        assertEquals(1, lookups.get());
+        assertEquals(3, later.size());
+    }
+
+    @Test
+    public void testInvalidateKeepsSnapshot() throws Exception {
+        Path file = stateFolder.resolve("test.snapshot");
+        LookupCache<String, String> earlier = new LookupCache<>("test", 10, 60000, 100, now::get);
+        for (String key : new String[]{"a", "b", "c"}) {
+            earlier.get(key, this::lookup);
+        }
+        CacheSnapshot.write(earlier, file);
+
+        LookupCache<String, String> later = new LookupCache<>("test", 10, 60000, 100, now::get);
+        later.useSnapshot(CacheSnapshot.open(file));
+        later.invalidate("a");
+        later.invalidateValues(Collections.singletonList("pid:b"));
+        lookups.set(0);
+        assertNull(later.getIfPresent("a"));
+        assertNull(later.getIfPresent("b"));
+        assertEquals("pid:c", later.getIfPresent("c"));
+        assertEquals("pid:a", later.get("a", this::lookup));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testDropsExpired() throws Exception {
+        Path file = stateFolder.resolve("test.snapshot");
+        LookupCache<String, String> earlier = new LookupCache<>("test", 10, 1, 100, now::get);
+        earlier.get("a", this::lookup);
+        CacheSnapshot.write(earlier, file);
+        TimeUnit.MILLISECONDS.sleep(10);
+
+        LookupCache<String, String> later = new LookupCache<>("test", 10, 1000, 100, now::get);
+        later.useSnapshot(CacheSnapshot.open(file));
+        assertNull(later.getIfPresent("a"));
+        assertEquals(0, later.size());
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws Exception {
+        Path file = stateFolder.resolve("test.snapshot");
+        LookupCache<String, String> earlier = new LookupCache<>("test", 10, 60000, 100, now::get);
+        for (String key : new String[]{"a", "b", "c"}) {
+            earlier.get(key, this::lookup);
+        }
+        CacheSnapshot.write(earlier, file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        //Cut in the table of offsets
+        Files.write(file, Arrays.copyOf(bytes, 16));
+        assertNull(CacheSnapshot.open(file));
+
+        //Cut in the entries
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+        CacheSnapshot snapshot = CacheSnapshot.open(file);
+        assertEquals("pid:a", snapshot.get("a").value);
+        assertNull(snapshot.get("c"));
+        assertNull("The snapshot is ignored once found corrupt", snapshot.get("a"));
+
+        //An offset out of the file
+        ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE - 4);
+        Files.write(file, bytes);
+        assertNull(CacheSnapshot.open(file).get("a"));
+    }
+
+    @Test
+    public void testMissingSnapshot() throws Exception {
+        assertNull(CacheSnapshot.open(stateFolder.resolve("test.snapshot")));
+    }
+
+    private String lookup(String key) {
+        lookups.incrementAndGet();
+        return "pid:" + key;
+    }
+}
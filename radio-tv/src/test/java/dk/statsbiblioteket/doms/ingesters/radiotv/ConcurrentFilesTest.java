@@ -0,0 +1,146 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Test that files handled from several threads at once are each handled once, and that the failures are counted
+ * exactly
+ */
+public class ConcurrentFilesTest {
+
+    /**
+     * More files than the client has file locks, so files share locks
+     */
+    private static final int FILES = 100;
+    /**
+     * The number of events for each file, handled at the same time
+     */
+    private static final int EVENTS = 3;
+
+    private Path hotFolder;
+    private Path processedFilesFolder;
+    private Path failedFilesFolder;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        hotFolder = Files.createTempDirectory("hotFolder");
+        processedFilesFolder = Files.createTempDirectory("processedFilesFolder");
+        failedFilesFolder = Files.createTempDirectory("failedFilesFolder");
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        FileUtils.deleteDirectory(hotFolder.toFile());
+        FileUtils.deleteDirectory(processedFilesFolder.toFile());
+        FileUtils.deleteDirectory(failedFilesFolder.toFile());
+    }
+
+    @Test(timeout = 60000)
+    public void testEachFileHandledOnce() throws Exception {
+        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+                Thread.currentThread().getContextClassLoader().getResource("exportedRadioTVProgram.xsd"));
+        String program;
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            program = IOUtils.toString(resourceAsStream, StandardCharsets.UTF_8);
+        }
+        //Valid xml, but the originals element is not allowed before the pbcore element
+        String invalidProgram = program.replace("<pbcore>", "<originals/><pbcore>");
+
+        //Every other file is invalid, and the rest are already in the processed folder
+        List<Path> files = new ArrayList<>();
+        int invalidFiles = 0;
+        for (int i = 0; i < FILES; i++) {
+            String filename = "program" + i + ".xml";
+            Path file = hotFolder.resolve(filename);
+            if (i % 2 == 0) {
+                Files.write(file, invalidProgram.getBytes(StandardCharsets.UTF_8));
+                invalidFiles++;
+            } else {
+                Files.write(file, program.getBytes(StandardCharsets.UTF_8));
+                Files.write(processedFilesFolder.resolve(filename), program.getBytes(StandardCharsets.UTF_8));
+            }
+            files.add(file);
+        }
+
+        DomsWSClient domsClient = mock(DomsWSClient.class);
+        //The client gives up at the failure after the invalid files
+        RadioTVFolderWatcherClient client = new RadioTVFolderWatcherClient(domsClient, failedFilesFolder,
+                                                                           processedFilesFolder, schema, false,
+                                                                           invalidFiles + 1, false);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> events = new ArrayList<>();
+            for (Path file : files) {
+                for (int event = 0; event < EVENTS; event++) {
+                    boolean added = event % 2 == 0;
+                    events.add(executor.submit(() -> {
+                        start.await();
+                        if (added) {
+                            client.fileAdded(file);
+                        } else {
+                            client.fileModified(file);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            start.countDown();
+            //Throws if a file was handled by two threads, or the failures reached the max
+            for (Future<?> event : events) {
+                event.get(30, TimeUnit.SECONDS);
+            }
+
+            for (int i = 0; i < FILES; i++) {
+                String filename = "program" + i + ".xml";
+                assertFalse(Files.exists(hotFolder.resolve(filename)));
+                assertEquals(i % 2 == 0, Files.exists(failedFilesFolder.resolve(filename)));
+            }
+            verifyZeroInteractions(domsClient);
+
+            //Each invalid file failed once, so one more failure reaches the max
+            Path lastFile = hotFolder.resolve("last.xml");
+            Files.write(lastFile, invalidProgram.getBytes(StandardCharsets.UTF_8));
+            try {
+                client.fileAdded(lastFile);
+                fail("The failure after the invalid files should reach the max");
+            } catch (RuntimeException e) {
+                //Thrown from the cleanup of the failed file, so wrapped
+                String message = e.getCause().getMessage();
+                assertTrue(message, message.contains("(" + (invalidFiles + 1) + ")"));
+            }
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that the content of a file can be read any number of times, whether it is in memory or mapped
+ */
+public class FileContentTest {
+
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("fileContent");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    public void testSmallFile() throws Exception {
+        Path file = folder.resolve("small.xml");
+        byte[] bytes = "<program><title>Olivers tvist</title></program>".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, bytes);
+
+        FileContent content = FileContent.read(file);
+        assertEquals(bytes.length, content.size());
+        assertContent(bytes, content);
+        assertEquals(XmlDigest.digest(file), content.getDigest());
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        Path file = folder.resolve("large.xml");
+        StringBuilder program = new StringBuilder("<program>");
+        while (program.length() <= FileContent.MAPPING_THRESHOLD) {
+            program.append("<title>Olivers tvist</title>");
+        }
+        program.append("</program>");
+        byte[] bytes = program.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(file, bytes);
+
+        FileContent content = FileContent.read(file);
+        assertEquals(bytes.length, content.size());
+        assertContent(bytes, content);
+        assertEquals(XmlDigest.digest(file), content.getDigest());
+    }
+
+    private void assertContent(byte[] expected, FileContent content) throws Exception {
+        try (InputStream first = content.newInputStream(); InputStream second = content.newInputStream()) {
+            assertEquals(expected[0], (byte) first.read());
+            assertArrayEquals(expected, IOUtils.toByteArray(second));
+        }
+    }
+}
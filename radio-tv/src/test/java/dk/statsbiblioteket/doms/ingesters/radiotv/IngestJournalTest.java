@@ -0,0 +1,139 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the ingest journal survives a restart
+ */
+public class IngestJournalTest {
+
+    private Path stateFolder;
+    private Path hotFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        stateFolder = Files.createTempDirectory("stateFolder");
+        hotFolder = Files.createTempDirectory("hotFolder");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(stateFolder.toFile());
+        FileUtils.deleteDirectory(hotFolder.toFile());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path ingested = Files.write(hotFolder.resolve("ingested.xml"), "ingested".getBytes(StandardCharsets.UTF_8));
+        Path published = Files.write(hotFolder.resolve("published.xml"), "published".getBytes(StandardCharsets.UTF_8));
+
+        try (IngestJournal journal = new IngestJournal(stateFolder, hotFolder)) {
+            journal.discovered(ingested, attributes(ingested));
+            journal.record(ingested, IngestJournal.Stage.PARSING, Collections.emptyList());
+            journal.record(ingested, IngestJournal.Stage.INGESTING, Arrays.asList("uuid:1", "uuid:2"));
+
+            journal.discovered(published, attributes(published));
+            journal.record(published, IngestJournal.Stage.PUBLISHED, Collections.singletonList("uuid:3"));
+        }
+        //A line torn by a crash must not prevent the restart
+        Files.write(stateFolder.resolve(IngestJournal.JOURNAL_FILE_NAME), "ARCHIVED\t12".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+
+        try (IngestJournal journal = new IngestJournal(stateFolder, hotFolder)) {
+            assertEquals(2, journal.size());
+
+            IngestJournal.Entry ingestedEntry = journal.get(ingested);
+            assertEquals(IngestJournal.Stage.INGESTING, ingestedEntry.getStage());
+            assertEquals(Arrays.asList("uuid:1", "uuid:2"), ingestedEntry.getPids());
+            assertTrue(ingestedEntry.matches(attributes(ingested)));
+
+            IngestJournal.Entry publishedEntry = journal.get(published);
+            assertEquals(IngestJournal.Stage.PUBLISHED, publishedEntry.getStage());
+            assertEquals(Collections.singletonList("uuid:3"), publishedEntry.getPids());
+
+            assertNull(journal.get(hotFolder.resolve("unknown.xml")));
+        }
+
+        //The journal is compacted to one line per file when opened
+        List<String> lines = Files.readAllLines(stateFolder.resolve(IngestJournal.JOURNAL_FILE_NAME));
+        assertEquals(2, lines.size());
+    }
+
+    @Test
+    public void testCompactionForgetsFilesDone() throws Exception {
+        Path archived = Files.write(hotFolder.resolve("archived.xml"), "archived".getBytes(StandardCharsets.UTF_8));
+        Path failed = Files.write(hotFolder.resolve("failed.xml"), "failed".getBytes(StandardCharsets.UTF_8));
+        Path retried = Files.write(hotFolder.resolve("retried.xml"), "retried".getBytes(StandardCharsets.UTF_8));
+        Path ingesting = Files.write(hotFolder.resolve("ingesting.xml"), "ingesting".getBytes(StandardCharsets.UTF_8));
+
+        try (IngestJournal journal = new IngestJournal(stateFolder, hotFolder)) {
+            for (Path file : Arrays.asList(archived, failed, retried, ingesting)) {
+                journal.discovered(file, attributes(file));
+            }
+            journal.record(archived, IngestJournal.Stage.ARCHIVED, Collections.singletonList("uuid:1"));
+            journal.record(failed, IngestJournal.Stage.FAILED, Collections.singletonList("uuid:2"));
+            journal.record(retried, IngestJournal.Stage.FAILED, Collections.singletonList("uuid:3"));
+            journal.record(ingesting, IngestJournal.Stage.INGESTING, Collections.singletonList("uuid:4"));
+        }
+        //Archived and failed files are moved out of the hot folder, but a failed file can be put back to retry it
+        Files.delete(archived);
+        Files.delete(failed);
+        Files.delete(ingesting);
+        long linesBefore = Files.readAllLines(stateFolder.resolve(IngestJournal.JOURNAL_FILE_NAME)).size();
+
+        try (IngestJournal journal = new IngestJournal(stateFolder, hotFolder)) {
+            assertEquals(2, journal.size());
+            assertNull(journal.get(archived));
+            assertNull(journal.get(failed));
+            assertEquals(IngestJournal.Stage.FAILED, journal.get(retried).getStage());
+            assertEquals(IngestJournal.Stage.INGESTING, journal.get(ingesting).getStage());
+        }
+
+        List<String> lines = Files.readAllLines(stateFolder.resolve(IngestJournal.JOURNAL_FILE_NAME));
+        assertEquals(2, lines.size());
+        assertTrue(lines.size() < linesBefore);
+    }
+
+    @Test
+    public void testChangedFileDoesNotMatch() throws Exception {
+        Path file = Files.write(hotFolder.resolve("file.xml"), "first".getBytes(StandardCharsets.UTF_8));
+
+        try (IngestJournal journal = new IngestJournal()) {
+            journal.discovered(file, attributes(file));
+            journal.record(file, IngestJournal.Stage.ARCHIVED, Collections.singletonList("uuid:1"));
+
+            Files.write(file, "second version".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            assertFalse(journal.get(file).matches(attributes(file)));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecordUndiscoveredFile() throws Exception {
+        try (IngestJournal journal = new IngestJournal()) {
+            journal.record(hotFolder.resolve("file.xml"), IngestJournal.Stage.PARSING, Collections.emptyList());
+        }
+    }
+
+    private BasicFileAttributes attributes(Path file) throws Exception {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
@@ -0,0 +1,133 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Test that the client resumes files from the stage the journal shows they reached
+ */
+public class IngestResumeTest {
+
+    private Path hotFolder;
+    private Path processedFilesFolder;
+    private Path failedFilesFolder;
+    private DomsWSClient domsClient;
+    private IngestJournal journal;
+    private RadioTVFolderWatcherClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        hotFolder = Files.createTempDirectory("hotFolder");
+        processedFilesFolder = Files.createTempDirectory("processedFilesFolder");
+        failedFilesFolder = Files.createTempDirectory("failedFilesFolder");
+        domsClient = mock(DomsWSClient.class);
+        journal = new IngestJournal();
+        client = new RadioTVFolderWatcherClient(domsClient, failedFilesFolder, processedFilesFolder, null, false, 10,
+                                                false, journal);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        FileUtils.deleteDirectory(hotFolder.toFile());
+        FileUtils.deleteDirectory(processedFilesFolder.toFile());
+        FileUtils.deleteDirectory(failedFilesFolder.toFile());
+    }
+
+    @Test
+    public void testArchivedFileWithoutProcessedCopyIsIngestedAgain() throws Exception {
+        //The processed copy was removed, and the file put back unchanged, to force a re-ingest
+        Path file = program("program.xml");
+        journal.discovered(file, attributes(file));
+        journal.record(file, IngestJournal.Stage.ARCHIVED, Collections.singletonList("uuid:1"));
+
+        client.fileAdded(file);
+
+        //The ingest fails against the mock, but the file is kept
+        verify(domsClient, atLeastOnce()).getFileObjectPID(any(URL.class));
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(failedFilesFolder.resolve("program.xml")));
+    }
+
+    @Test
+    public void testArchivedFileWithProcessedCopyIsDeleted() throws Exception {
+        Path file = program("program.xml");
+        Files.copy(file, processedFilesFolder.resolve("program.xml"), StandardCopyOption.COPY_ATTRIBUTES);
+        journal.discovered(file, attributes(file));
+        journal.record(file, IngestJournal.Stage.ARCHIVED, Collections.singletonList("uuid:1"));
+
+        client.fileAdded(file);
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(processedFilesFolder.resolve("program.xml")));
+        verifyZeroInteractions(domsClient);
+    }
+
+    @Test
+    public void testPublishedFileIsArchived() throws Exception {
+        Path file = program("program.xml");
+        journal.discovered(file, attributes(file));
+        journal.record(file, IngestJournal.Stage.PUBLISHED, Collections.singletonList("uuid:1"));
+
+        client.fileAdded(file);
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(processedFilesFolder.resolve("program.xml")));
+        verifyZeroInteractions(domsClient);
+        //The file have left the hot folder, so it is forgotten
+        assertNull(journal.get(file));
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void testIngestedFileIsPublished() throws Exception {
+        Path file = program("program.xml");
+        journal.discovered(file, attributes(file));
+        journal.record(file, IngestJournal.Stage.INGESTING, Arrays.asList("uuid:1", "uuid:2"));
+
+        client.fileAdded(file);
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(processedFilesFolder.resolve("program.xml")));
+        verify(domsClient).publishObjects(any(String.class), eq("uuid:1"), eq("uuid:2"));
+        verifyNoMoreInteractions(domsClient);
+        assertEquals(0, journal.size());
+    }
+
+    private Path program(String filename) throws Exception {
+        Path file = hotFolder.resolve(filename);
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            Files.copy(resourceAsStream, file);
+        }
+        return file;
+    }
+
+    private BasicFileAttributes attributes(Path file) throws Exception {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
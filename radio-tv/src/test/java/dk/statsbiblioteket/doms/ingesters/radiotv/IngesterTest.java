@@ -23,16 +23,18 @@ public class IngesterTest {
         Path hotFolder = Files.createTempDirectory("hotFolder").toAbsolutePath();
         Path lukeFolder = Files.createTempDirectory("lukeFolder").toAbsolutePath();
         Path stopFolder = Files.createTempDirectory("stopFolder").toAbsolutePath();
+        Path stateFolder = Files.createTempDirectory("stateFolder").toAbsolutePath();
 
         //register them for cleanup
         coldFolder.toFile().deleteOnExit();
         hotFolder.toFile().deleteOnExit();
         lukeFolder.toFile().deleteOnExit();
         stopFolder.toFile().deleteOnExit();
+        stateFolder.toFile().deleteOnExit();
 
         String commandLine = MessageFormat.format(
-                "-hotfolder={0} -lukefolder={1} -coldfolder={2} -stopfolder={3} -wsdl=http://wsdl.net -username=$USERNAME -password=$PASSWORD  -preingestschema=$SCHEMA -overwrite=false -numthreads=5 -threadwaittime=1200 -maxFails=8",
-                hotFolder, lukeFolder, coldFolder, stopFolder);
+                "-hotfolder={0} -lukefolder={1} -coldfolder={2} -stopfolder={3} -statefolder={4} -wsdl=http://wsdl.net -username=$USERNAME -password=$PASSWORD  -preingestschema=$SCHEMA -overwrite=false -numthreads=5 -threadwaittime=1200 -quietperiod=500 -maxFails=8 -programpidcache=exclusive -maxdomsrequests=12",
+                hotFolder, lukeFolder, coldFolder, stopFolder, stateFolder);
 
         CommandLine parsedArgs = Ingester.setupCommandLine(commandLine.split(" +"));
 
@@ -40,6 +42,7 @@ public class IngesterTest {
         assertEquals(Ingester.parseLukefolder(parsedArgs), lukeFolder);
         assertEquals(Ingester.parseColdfolder(parsedArgs), coldFolder);
         assertEquals(Ingester.parseStopfolder(parsedArgs), stopFolder);
+        assertEquals(Ingester.parseStatefolder(parsedArgs), stateFolder);
 
         assertEquals(Ingester.parseWSDL(parsedArgs), new URL("http://wsdl.net"));
         assertEquals(Ingester.parseUsername(parsedArgs),"$USERNAME");
@@ -50,7 +53,10 @@ public class IngesterTest {
 
         assertEquals(Ingester.parseNumThreads(parsedArgs),5);
         assertEquals(Ingester.parseThreadWaitTime(parsedArgs),1200);
+        assertEquals(Ingester.parseQuietPeriod(parsedArgs),500);
         assertEquals(Ingester.parseMaxFails(parsedArgs),8);
+        assertEquals(Ingester.parseProgramPidCache(parsedArgs), ProgramPidCache.Mode.EXCLUSIVE);
+        assertEquals(Ingester.parseMaxDomsRequests(parsedArgs), 12);
     }
 
     @Test
@@ -60,12 +66,14 @@ public class IngesterTest {
         Path failedFiles = Paths.get("/tmp/failedFiles");
         Path processedFiles = Paths.get("processedFiles");
         Path stopFolder = Paths.get("stopFolder");
+        Path stateFolder = Paths.get("ingestState");
 
         //Register them for cleanup
         radioTVMetaData.toFile().deleteOnExit();
         failedFiles.toFile().deleteOnExit();
         processedFiles.toFile().deleteOnExit();
         stopFolder.toFile().deleteOnExit();
+        stateFolder.toFile().deleteOnExit();
 
         String commandLine = "-wsdl=http://wsdl.net";
         CommandLine parsedArgs = Ingester.setupCommandLine(commandLine.split(" +"));
@@ -74,6 +82,7 @@ public class IngesterTest {
         assertEquals(Ingester.parseLukefolder(parsedArgs), failedFiles);
         assertEquals(Ingester.parseColdfolder(parsedArgs), processedFiles);
         assertEquals(Ingester.parseStopfolder(parsedArgs), stopFolder);
+        assertEquals(Ingester.parseStatefolder(parsedArgs), stateFolder);
 
         assertEquals(Ingester.parseWSDL(parsedArgs), new URL("http://wsdl.net"));
         assertEquals(Ingester.parseUsername(parsedArgs),"fedoraAdmin");
@@ -87,7 +96,10 @@ public class IngesterTest {
 
         assertEquals(Ingester.parseNumThreads(parsedArgs),4);
         assertEquals(Ingester.parseThreadWaitTime(parsedArgs),1000);
+        assertEquals(Ingester.parseQuietPeriod(parsedArgs),2000);
         assertEquals(Ingester.parseMaxFails(parsedArgs),10);
+        assertEquals(Ingester.parseProgramPidCache(parsedArgs), ProgramPidCache.Mode.POSITIVE);
+        assertEquals(Ingester.parseMaxDomsRequests(parsedArgs), AsyncDomsClient.DEFAULT_MAX_IN_FLIGHT);
     }
 
 }
\ No newline at end of file
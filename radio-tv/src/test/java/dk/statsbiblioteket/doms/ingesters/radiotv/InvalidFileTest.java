@@ -0,0 +1,108 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Test that files that are not valid according to the schema are rejected before DOMS is contacted
+ */
+public class InvalidFileTest {
+
+    private Path hotFolder;
+    private Path processedFilesFolder;
+    private Path failedFilesFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        hotFolder = Files.createTempDirectory("hotFolder");
+        processedFilesFolder = Files.createTempDirectory("processedFilesFolder");
+        failedFilesFolder = Files.createTempDirectory("failedFilesFolder");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(hotFolder.toFile());
+        FileUtils.deleteDirectory(processedFilesFolder.toFile());
+        FileUtils.deleteDirectory(failedFilesFolder.toFile());
+    }
+
+    @Test
+    public void testInvalidFileRejectedWithoutDoms() throws Exception {
+        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+                Thread.currentThread().getContextClassLoader().getResource("exportedRadioTVProgram.xsd"));
+
+        //Valid xml, but the originals element is not allowed before the pbcore element
+        String program;
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            program = IOUtils.toString(resourceAsStream, StandardCharsets.UTF_8);
+        }
+        program = program.replace("<pbcore>", "<originals/><pbcore>");
+        Path file = hotFolder.resolve("invalid.xml");
+        Files.write(file, program.getBytes(StandardCharsets.UTF_8));
+
+        DomsWSClient domsClient = mock(DomsWSClient.class);
+        RadioTVFolderWatcherClient client = new RadioTVFolderWatcherClient(domsClient, failedFilesFolder,
+                                                                           processedFilesFolder, schema, false, 10,
+                                                                           false);
+        client.fileAdded(file);
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(failedFilesFolder.resolve("invalid.xml")));
+        verifyZeroInteractions(domsClient);
+    }
+
+    @Test
+    public void testParserReusedAfterFailure() throws Exception {
+        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+                Thread.currentThread().getContextClassLoader().getResource("exportedRadioTVProgram.xsd"));
+        String program;
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            program = IOUtils.toString(resourceAsStream, StandardCharsets.UTF_8);
+        }
+        //Cut off in the middle of the pbcore element, so the parser and validator fail halfway through the document
+        Path truncated = hotFolder.resolve("truncated.xml");
+        Files.write(truncated, program.substring(0, program.indexOf("<pbcore>") + 100).getBytes(StandardCharsets.UTF_8));
+        Path invalid = hotFolder.resolve("invalid.xml");
+        Files.write(invalid, program.replace("<pbcore>", "<originals/><pbcore>").getBytes(StandardCharsets.UTF_8));
+        Path valid = hotFolder.resolve("valid.xml");
+        Files.write(valid, program.getBytes(StandardCharsets.UTF_8));
+
+        DomsWSClient domsClient = mock(DomsWSClient.class);
+        RadioTVFolderWatcherClient client = new RadioTVFolderWatcherClient(domsClient, failedFilesFolder,
+                                                                           processedFilesFolder, schema, false, 10,
+                                                                           false);
+        //All on this thread, so the same parser and validator handle all the files
+        client.fileAdded(truncated);
+        client.fileAdded(invalid);
+        assertTrue(Files.exists(failedFilesFolder.resolve("truncated.xml")));
+        assertTrue(Files.exists(failedFilesFolder.resolve("invalid.xml")));
+        verifyZeroInteractions(domsClient);
+
+        //The valid file is parsed and validated, so DOMS is asked for its files
+        client.fileAdded(valid);
+        verify(domsClient, atLeastOnce()).getFileObjectPID(any(URL.class));
+    }
+}
@@ -0,0 +1,86 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test that the lookup cache remembers values and misses for as long as it should
+ */
+public class LookupCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Test
+    public void testRemembersUntilExpiry() throws Exception {
+        LookupCache<String, String> cache = new LookupCache<>("test", 10, 1000, 100, now::get);
+
+        assertEquals("pid:a", cache.get("a", this::lookup));
+        assertEquals("pid:a", cache.get("a", this::lookup));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals("pid:a", cache.get("a", this::lookup));
+        assertEquals(2, lookups.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testRemembersNotFoundShortly() throws Exception {
+        LookupCache<String, String> cache = new LookupCache<>("test", 10, 1000, 100, now::get);
+
+        NoObjectFound first = getNotFound(cache);
+        assertSame(first, getNotFound(cache));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        getNotFound(cache);
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        LookupCache<String, String> cache = new LookupCache<>("test", 2, 1000, 100, now::get);
+
+        cache.get("a", this::lookup);
+        cache.get("b", this::lookup);
+        cache.get("a", this::lookup);
+        cache.get("c", this::lookup);
+        assertEquals(2, cache.size());
+        assertEquals(3, lookups.get());
+
+        cache.get("a", this::lookup);
+        assertEquals(3, lookups.get());
+        cache.get("b", this::lookup);
+        assertEquals(4, lookups.get());
+    }
+
+    private NoObjectFound getNotFound(LookupCache<String, String> cache) throws Exception {
+        try {
+            cache.get("missing", this::lookup);
+            fail("Expected NoObjectFound");
+            return null;
+        } catch (NoObjectFound e) {
+            return e;
+        }
+    }
+
+    private String lookup(String key) throws NoObjectFound {
+        lookups.incrementAndGet();
+        if (key.equals("missing")) {
+            //Mocked, so the test does not depend on the constructors of the doms client exceptions
+            throw mock(NoObjectFound.class);
+        }
+        return "pid:" + key;
+    }
+}
@@ -0,0 +1,145 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the program pid cache only skips DOMS when the mode allows it
+ */
+public class ProgramPidCacheTest {
+
+    private final List<String> lookups = new ArrayList<>();
+
+    private Path processedFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        processedFolder = Files.createTempDirectory("processedFilesFolder");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(processedFolder.toFile());
+    }
+
+    @Test
+    public void testPositiveRemembersFoundAndCreated() throws Exception {
+        ProgramPidCache cache = new ProgramPidCache(ProgramPidCache.Mode.POSITIVE);
+
+        assertEquals("uuid:found", cache.get("found", this::lookup));
+        assertEquals("uuid:found", cache.get("found", this::lookup));
+        assertNull(cache.get("new", this::lookup));
+        assertNull(cache.get("new", this::lookup));
+        assertEquals(3, lookups.size());
+
+        cache.created(Collections.singletonList("new"), "uuid:created");
+        assertEquals("uuid:created", cache.get("new", this::lookup));
+        assertEquals(3, lookups.size());
+
+        cache.deleted(Collections.singletonList("uuid:created"));
+        assertNull(cache.get("new", this::lookup));
+        assertEquals(4, lookups.size());
+    }
+
+    @Test
+    public void testExclusiveSkipsUnknownIdentifiers() throws Exception {
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            FileUtils.copyInputStreamToFile(resourceAsStream, processedFolder.resolve("program.xml").toFile());
+        }
+        ProgramPidCache cache = new ProgramPidCache(ProgramPidCache.Mode.EXCLUSIVE, 10, 1000, 1000, 0.01);
+        cache.seed(processedFolder);
+
+        assertNull(cache.get("new", this::lookup));
+        assertTrue(lookups.isEmpty());
+
+        assertNull(cache.get("5444487RitzauProgram", this::lookup));
+        assertEquals(Collections.singletonList("5444487RitzauProgram"), lookups);
+    }
+
+    @Test
+    public void testExclusiveAsksUntilSeeded() throws Exception {
+        ProgramPidCache cache = new ProgramPidCache(ProgramPidCache.Mode.EXCLUSIVE, 10, 1000, 1000, 0.01);
+        assertNull(cache.get("new", this::lookup));
+        assertEquals(Collections.singletonList("new"), lookups);
+
+        cache.seed(processedFolder);
+        assertNull(cache.get("new", this::lookup));
+        assertEquals(1, lookups.size());
+    }
+
+    @Test
+    public void testKnownIdentifiersSnapshot() throws Exception {
+        Path stateFolder = Files.createDirectory(processedFolder.resolve("state"));
+        Path snapshot = stateFolder.resolve(RecordCreator.KNOWN_IDENTIFIERS_SNAPSHOT_FILE_NAME);
+        ProgramPidCache first = new ProgramPidCache(ProgramPidCache.Mode.EXCLUSIVE, 10, 1000, 1000, 0.01);
+        first.seedInBackground(processedFolder, snapshot).join();
+        first.created(Collections.singletonList("created"), "uuid:created");
+        first.ingested(Arrays.asList("created", "ingested"));
+        first.writeKnownIdentifiers(snapshot);
+
+        //Files older than the snapshot are not read again
+        Path program = processedFolder.resolve("program.xml");
+        try (InputStream resourceAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                "2012-11-14_23-20-00_dr1.xml")) {
+            FileUtils.copyInputStreamToFile(resourceAsStream, program.toFile());
+        }
+        Files.setLastModifiedTime(program, FileTime.fromMillis(Files.getLastModifiedTime(snapshot).toMillis() - 60000));
+
+        ProgramPidCache second = new ProgramPidCache(ProgramPidCache.Mode.EXCLUSIVE, 10, 1000, 1000, 0.01);
+        second.seedInBackground(processedFolder, snapshot).join();
+        assertFalse("The snapshot is used once", Files.exists(snapshot));
+
+        assertNull(second.get("new", this::lookup));
+        assertNull(second.get("5444487RitzauProgram", this::lookup));
+        assertNull(second.get("created", this::lookup));
+        assertNull(second.get("ingested", this::lookup));
+        assertEquals(Arrays.asList("created", "ingested"), lookups);
+    }
+
+    @Test
+    public void testNoneAlwaysAsks() throws Exception {
+        ProgramPidCache cache = new ProgramPidCache(ProgramPidCache.Mode.NONE);
+        cache.created(Collections.singletonList("found"), "uuid:found");
+        cache.get("found", this::lookup);
+        cache.get("found", this::lookup);
+        assertEquals(2, lookups.size());
+    }
+
+    @Test
+    public void testBloomFilter() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("id" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("id" + i));
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertFalse("Too many false positives: " + falsePositives, falsePositives > 50);
+    }
+
+    private String lookup(String oldIdentifier) {
+        lookups.add(oldIdentifier);
+        return oldIdentifier.equals("found") ? "uuid:found" : null;
+    }
+}
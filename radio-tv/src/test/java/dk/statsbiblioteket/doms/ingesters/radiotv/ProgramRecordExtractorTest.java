@@ -0,0 +1,85 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.XMLReader;
+import org.xmlunit.builder.Input;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test that the program record holds the same values and datastreams as the program export
+ */
+public class ProgramRecordExtractorTest {
+
+    private static final String PROGRAM_FILE = "2012-11-14_23-20-00_dr1.xml";
+
+    @Test
+    public void testExtractFromFile() throws Exception {
+        File file = new File(Thread.currentThread().getContextClassLoader().getResource(PROGRAM_FILE).toURI());
+
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        ProgramRecordExtractor extractor = new ProgramRecordExtractor();
+        reader.setContentHandler(extractor);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", extractor);
+        reader.parse(file.toURI().toString());
+        ProgramRecord program = extractor.getRecord();
+
+        assertProgram(program, parse(file));
+    }
+
+    @Test
+    public void testExtractFromDocument() throws Exception {
+        File file = new File(Thread.currentThread().getContextClassLoader().getResource(PROGRAM_FILE).toURI());
+        Document document = parse(file);
+
+        assertProgram(ProgramRecord.fromDocument(document), document);
+    }
+
+    private void assertProgram(ProgramRecord program, Document document) {
+        assertEquals("Damages", program.getTitle());
+        assertEquals(2, program.getOldIdentifiers().size());
+        assertEquals("5444487RitzauProgram", program.getOldIdentifiers().get(0));
+        assertEquals(Arrays.asList(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts",
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352934000-2012-11-15-00.00.00_1352937600-2012-11-15-01.00.00_dvb1-2.ts"),
+                     program.getFileUrls());
+
+        Node root = document.getDocumentElement();
+        assertSameFragment(child(root, "pbcore", "PBCoreDescriptionDocument"), program.getPbcore());
+        assertSameFragment(child(root, "originals", "ritzau_original"), program.getRitzauOriginal());
+        assertSameFragment(child(root, "originals", "tvmeterProgram"), program.getGallupOriginal());
+        assertSameFragment(child(root, "programBroadcast"), program.getProgramBroadcast());
+    }
+
+    private void assertSameFragment(Node expected, Document actual) {
+        assertFalse(Util.xmlDiff(Input.fromNode(expected).build(), Input.fromDocument(actual).build())
+                        .hasDifferences());
+    }
+
+    private Node child(Node node, String... localNames) {
+        for (String localName : localNames) {
+            Node child = node.getFirstChild();
+            while (!localName.equals(child.getLocalName())) {
+                child = child.getNextSibling();
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private Document parse(File file) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(file);
+    }
+}
@@ -0,0 +1,81 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the program state store survives a restart, and forgets stale programs
+ */
+public class ProgramStateStoreTest {
+
+    private static final String DIGEST = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private Path stateFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        stateFolder = Files.createTempDirectory("stateFolder");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(stateFolder.toFile());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Map<String, String> digests = new HashMap<>();
+        digests.put(RecordCreator.PROGRAM_PBCORE_DS_ID, DIGEST);
+        digests.put(RecordCreator.GALLUP_ORIGINAL_DS_ID, DIGEST.toUpperCase());
+
+        try (ProgramStateStore store = new ProgramStateStore(stateFolder)) {
+            store.record("uuid:1", new ProgramStateStore.State("Damages", digests,
+                                                               new HashSet<>(Arrays.asList("uuid:f1", "uuid:f2"))));
+            store.record("uuid:2", new ProgramStateStore.State("Olivers tvist\tigen", digests, Collections.emptySet()));
+            store.record("uuid:3", new ProgramStateStore.State("Deleted", digests, Collections.emptySet()));
+            store.stale("uuid:3");
+        }
+        //A line torn by a crash must not prevent the restart
+        Files.write(stateFolder.resolve(ProgramStateStore.STORE_FILE_NAME), "STATE\tuuid:4\t01".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+
+        try (ProgramStateStore store = new ProgramStateStore(stateFolder)) {
+            assertEquals(2, store.size());
+
+            ProgramStateStore.State first = store.get("uuid:1");
+            assertTrue(first.hasTitle("Damages"));
+            assertFalse(first.hasTitle("Damages 2"));
+            assertEquals(DIGEST, first.getDigest(RecordCreator.PROGRAM_PBCORE_DS_ID));
+            assertEquals(DIGEST, first.getDigest(RecordCreator.GALLUP_ORIGINAL_DS_ID));
+            assertNull(first.getDigest(RecordCreator.RITZAU_ORIGINAL_DS_ID));
+            assertEquals(new HashSet<>(Arrays.asList("uuid:f1", "uuid:f2")), first.getFilePids());
+
+            ProgramStateStore.State second = store.get("uuid:2");
+            assertTrue(second.hasTitle("Olivers tvist\tigen"));
+            assertTrue(second.getFilePids().isEmpty());
+
+            assertNull(store.get("uuid:3"));
+            assertNull(store.get("uuid:4"));
+        }
+
+        //The store is compacted to one line per program when opened
+        assertEquals(2, Files.readAllLines(stateFolder.resolve(ProgramStateStore.STORE_FILE_NAME)).size());
+    }
+}
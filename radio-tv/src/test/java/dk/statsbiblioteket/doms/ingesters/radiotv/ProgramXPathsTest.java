@@ -0,0 +1,65 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.util.xml.DOM;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test that the compiled xpath expressions are reused within a thread, and not shared between threads
+ */
+public class ProgramXPathsTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 30000)
+    public void testTwoThreads() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Future<ProgramXPaths>> threads = new ArrayList<>();
+        for (int thread = 0; thread < 2; thread++) {
+            String name = "thread" + thread;
+            threads.add(executor.submit(() -> {
+                ProgramXPaths xPaths = ProgramXPaths.get();
+                barrier.await();
+                for (int i = 0; i < 1000; i++) {
+                    String title = name + " title " + i;
+                    Document dc = DOM.stringToDOM(
+                            "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                            RecordCreator.DC_NAMESPACE + "'><dc:title>" + title + "</dc:title><dc:identifier>" + name +
+                            "</dc:identifier><dc:identifier>" + i + "</dc:identifier></oai_dc:dc>", true);
+                    //The same instance all the way through the thread
+                    assertSame(xPaths, ProgramXPaths.get());
+                    NodeList titles = xPaths.selectNodeList(dc, xPaths.dcTitle);
+                    assertEquals(1, titles.getLength());
+                    assertEquals(title, titles.item(0).getTextContent());
+                    NodeList identifiers = xPaths.selectNodeList(dc, xPaths.dcIdentifiers);
+                    assertEquals(2, identifiers.getLength());
+                    assertEquals(name, identifiers.item(0).getTextContent());
+                    assertEquals(Integer.toString(i), identifiers.item(1).getTextContent());
+                }
+                return xPaths;
+            }));
+        }
+        ProgramXPaths first = threads.get(0).get(20, TimeUnit.SECONDS);
+        ProgramXPaths second = threads.get(1).get(20, TimeUnit.SECONDS);
+        assertNotSame(first, second);
+    }
+}
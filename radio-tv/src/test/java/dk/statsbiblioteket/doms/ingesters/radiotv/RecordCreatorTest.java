@@ -37,6 +37,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import static dk.statsbiblioteket.doms.ingesters.radiotv.RecordCreator.GALLUP_ORIGINAL_DS_ID;
@@ -46,10 +52,13 @@ import static dk.statsbiblioteket.doms.ingesters.radiotv.RecordCreator.PROGRAM_P
 import static dk.statsbiblioteket.doms.ingesters.radiotv.RecordCreator.PROGRAM_TEMPLATE_PID;
 import static dk.statsbiblioteket.doms.ingesters.radiotv.RecordCreator.RITZAU_ORIGINAL_DS_ID;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -242,12 +251,11 @@ public class RecordCreatorTest {
         when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
 
 
-        //All this for label
-        DigitalObjectFactory dof = mock(DigitalObjectFactory.class);
-        DigitalObject digo = mock(DigitalObject.class);
-        when(testDomsClient.getDigitalObjectFactory()).thenReturn(dof);
-        when(dof.getDigitalObject(programPid)).thenReturn(digo);
-        when(digo.getTitle()).thenReturn(programTitle);
+        //The title is read from the DC datastream
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>" + programTitle + "</dc:title><dc:identifier>" +
+                ritzauOldID + "</dc:identifier></oai_dc:dc>", true));
 
 
         when(testDomsClient.getDataStream(programPid,RecordCreator.PROGRAM_PBCORE_DS_ID)).thenReturn(DOM.stringToDOM(pbCoreString,true));
@@ -275,10 +283,8 @@ public class RecordCreatorTest {
                                                                         + Pattern.quote(tvMeterOldID)
                                                                         + ")$"));
 
-        //And we get the label
-        verify(testDomsClient).getDigitalObjectFactory();
-        verify(dof).getDigitalObject(programPid);
-        verify(digo).getTitle();
+        //And we get the title, without loading the object
+        verify(testDomsClient).getDataStream(eq(programPid), eq(RecordCreator.DC_DS_ID));
 
         //Then we add the four datastreamsw
         verify(testDomsClient).getDataStream(eq(programPid), eq(PROGRAM_PBCORE_DS_ID));
@@ -301,6 +307,590 @@ public class RecordCreatorTest {
 
 
 
+    @Test
+    public void testOverwriteOnlyWritesChangedDatastreams() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:identifier>" + ritzauOldID + "</dc:identifier><dc:identifier>" +
+                tvMeterOldID + "</dc:identifier></oai_dc:dc>", true));
+
+        //Only the gallup datastream differs from what DOMS have
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenReturn(DOM.stringToDOM(pbCoreString, true));
+        when(testDomsClient.getDataStream(programPid, RITZAU_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(ritzauOrig, true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_BROADCAST_DS_ID)).thenReturn(DOM.stringToDOM(programBroadcast, true));
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(
+                DOM.stringToDOM(getTvMeter(tvMeterOldID, approxStart, approxEnd), true));
+
+        when(testDomsClient.listObjectRelations(programPid, HAS_FILE_RELATION)).thenReturn(
+                Collections.singletonList(new ObjectRelationImpl(programPid, HAS_FILE_RELATION, filePid1, null)));
+
+        /*Invoke method*/
+        String ingestedPid = new RecordCreator(testDomsClient, true, false).ingestProgram(metadataDocument, filename);
+        assertEquals("Wrong pid of ingested program", programPid, ingestedPid);
+
+        //Only the changed datastream is written
+        verify(testDomsClient).updateDataStream(eq(programPid), eq(GALLUP_ORIGINAL_DS_ID), any(Document.class), any(String.class));
+        verify(testDomsClient, never()).updateDataStream(eq(programPid), eq(PROGRAM_PBCORE_DS_ID), any(Document.class), any(String.class));
+        verify(testDomsClient, never()).updateDataStream(eq(programPid), eq(RITZAU_ORIGINAL_DS_ID), any(Document.class), any(String.class));
+        verify(testDomsClient, never()).updateDataStream(eq(programPid), eq(PROGRAM_BROADCAST_DS_ID), any(Document.class), any(String.class));
+        //The DC datastream already have the old identifiers
+        verify(testDomsClient, never()).updateDataStream(eq(programPid), eq(RecordCreator.DC_DS_ID), any(Document.class), any(String.class));
+    }
+
+    @Test
+    public void testCheckConfirmsDifferentDcTitleAgainstLabel() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+
+        //The DC title is not the one the label was set to
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>Damages, old title</dc:title><dc:identifier>" +
+                ritzauOldID + "</dc:identifier><dc:identifier>" + tvMeterOldID + "</dc:identifier></oai_dc:dc>",
+                true));
+        DigitalObjectFactory dof = mock(DigitalObjectFactory.class);
+        DigitalObject digo = mock(DigitalObject.class);
+        when(testDomsClient.getDigitalObjectFactory()).thenReturn(dof);
+        when(dof.getDigitalObject(programPid)).thenReturn(digo);
+        when(digo.getTitle()).thenReturn(programTitle);
+
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenReturn(DOM.stringToDOM(pbCoreString, true));
+        when(testDomsClient.getDataStream(programPid, RITZAU_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(ritzauOrig, true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_BROADCAST_DS_ID)).thenReturn(DOM.stringToDOM(programBroadcast, true));
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(tvmeterOrig, true));
+        when(testDomsClient.listObjectRelations(programPid, HAS_FILE_RELATION)).thenReturn(
+                Collections.singletonList(new ObjectRelationImpl(programPid, HAS_FILE_RELATION, filePid1, null)));
+
+        //The label has the title, so the program is identical, and no overwrite is needed
+        String ingestedPid = new RecordCreator(testDomsClient, false, true).ingestProgram(metadataDocument, filename);
+        assertEquals("Wrong pid of ingested program", programPid, ingestedPid);
+        verify(dof).getDigitalObject(programPid);
+
+        //When something else differs, the overwrite does not set the label again
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(
+                DOM.stringToDOM(getTvMeter(tvMeterOldID, approxStart, approxEnd), true));
+        ingestedPid = new RecordCreator(testDomsClient, true, true).ingestProgram(metadataDocument, filename);
+        assertEquals("Wrong pid of ingested program", programPid, ingestedPid);
+        verify(testDomsClient).updateDataStream(eq(programPid), eq(GALLUP_ORIGINAL_DS_ID), any(Document.class), any(String.class));
+        verify(testDomsClient, never()).setObjectLabel(eq(programPid), any(String.class), any(String.class));
+    }
+
+    @Test
+    public void testCheckAndOverwriteListRelationsOnce() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+        String oldFilePid = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>" + programTitle + "</dc:title><dc:identifier>" +
+                ritzauOldID + "</dc:identifier><dc:identifier>" + tvMeterOldID + "</dc:identifier></oai_dc:dc>",
+                true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenReturn(DOM.stringToDOM(pbCoreString, true));
+        when(testDomsClient.getDataStream(programPid, RITZAU_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(ritzauOrig, true));
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(tvmeterOrig, true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_BROADCAST_DS_ID)).thenReturn(DOM.stringToDOM(programBroadcast, true));
+
+        //Only the relations differ, as the program is also related to a file it no longer refers to
+        when(testDomsClient.listObjectRelations(programPid, HAS_FILE_RELATION)).thenReturn(
+                Arrays.asList(new ObjectRelationImpl(programPid, HAS_FILE_RELATION, filePid1, null),
+                              new ObjectRelationImpl(programPid, HAS_FILE_RELATION, oldFilePid, null)));
+
+        /*Invoke method*/
+        String ingestedPid = new RecordCreator(testDomsClient, true, true).ingestProgram(metadataDocument, filename);
+        assertEquals("Wrong pid of ingested program", programPid, ingestedPid);
+
+        //The relations are listed by the check, and the update uses that listing
+        verify(testDomsClient).listObjectRelations(programPid, HAS_FILE_RELATION);
+
+        //Only the relation to the old file is changed
+        verify(testDomsClient).removeObjectRelation(any(LiteralRelation.class), eq(Util.domsCommenter(
+                filename, "removed relation '" + HAS_FILE_RELATION + "' to '" + oldFilePid + "'")));
+        verify(testDomsClient, never()).addObjectRelation(any(String.class), any(String.class), any(String.class),
+                                                          any(String.class));
+    }
+
+    @Test(timeout = 10000)
+    public void testOverwriteUsesAllStartedChecks() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>" + programTitle + "</dc:title><dc:identifier>" +
+                ritzauOldID + "</dc:identifier><dc:identifier>" + tvMeterOldID + "</dc:identifier></oai_dc:dc>",
+                true));
+        //The PBCore datastream is slow, so the ritzau datastream is found to differ before it arrives
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenAnswer(invocation -> {
+            TimeUnit.MILLISECONDS.sleep(200);
+            return DOM.stringToDOM(pbCoreString, true);
+        });
+        when(testDomsClient.getDataStream(programPid, RITZAU_ORIGINAL_DS_ID)).thenReturn(
+                DOM.stringToDOM(getRitzau(ritzauOldID, approxStart, approxEnd, "Olivers tvist"), true));
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(tvmeterOrig, true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_BROADCAST_DS_ID)).thenReturn(DOM.stringToDOM(programBroadcast, true));
+        when(testDomsClient.listObjectRelations(programPid, HAS_FILE_RELATION)).thenReturn(
+                Collections.singletonList(new ObjectRelationImpl(programPid, HAS_FILE_RELATION, filePid1, null)));
+
+        /*Invoke method*/
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            new RecordCreator(testDomsClient, true, true, new ProgramPidCache(ProgramPidCache.Mode.NONE), executor,
+                              8).ingestProgram(metadataDocument, filename);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        //The overwrite uses what the started checks read, rather than what happened to arrive before the difference
+        verify(testDomsClient).getDataStream(programPid, PROGRAM_PBCORE_DS_ID);
+        verify(testDomsClient).updateDataStream(eq(programPid), eq(RITZAU_ORIGINAL_DS_ID), any(Document.class), any(String.class));
+        verify(testDomsClient, never()).updateDataStream(eq(programPid), eq(PROGRAM_PBCORE_DS_ID), any(Document.class), any(String.class));
+    }
+
+    @Test(timeout = 10000)
+    public void testCheckCancelsWaitingReadsAtFirstDifference() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>" + programTitle + "</dc:title></oai_dc:dc>", true));
+        //The PBCore datastream differs, so the reads queued behind it are not needed
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenReturn(
+                DOM.stringToDOM(getPBCore(ritzauOldID, tvMeterOldID, "Olivers tvist"), true));
+
+        /*Invoke method*/
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            //One call in flight at a time, so the reads are made in the order of the checks
+            new RecordCreator(testDomsClient, false, true, new ProgramPidCache(ProgramPidCache.Mode.NONE), executor,
+                              1).ingestProgram(metadataDocument, filename);
+            fail("The different program should not be overwritten");
+        } catch (OverwriteException e) {
+            //expected
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        verify(testDomsClient).getDataStream(programPid, RecordCreator.DC_DS_ID);
+        verify(testDomsClient).getDataStream(programPid, PROGRAM_PBCORE_DS_ID);
+        verify(testDomsClient, never()).getDataStream(programPid, RITZAU_ORIGINAL_DS_ID);
+        verify(testDomsClient, never()).getDataStream(programPid, GALLUP_ORIGINAL_DS_ID);
+        verify(testDomsClient, never()).getDataStream(programPid, PROGRAM_BROADCAST_DS_ID);
+        verify(testDomsClient, never()).listObjectRelations(programPid, HAS_FILE_RELATION);
+    }
+
+    @Test(timeout = 10000)
+    public void testOldIdentifiersLookedUpConcurrently() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(),
+                                                getRitzau(ritzauOldID, approxStart, approxEnd, programTitle),
+                                                getTvMeter(tvMeterOldID, preciseStart, preciseEnd),
+                                                getProgramBroadcast(preciseStart, preciseEnd));
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+
+        //The ritzau identifier is only answered when the tvmeter identifier have been asked for as well
+        CountDownLatch tvMeterAsked = new CountDownLatch(1);
+        AtomicBoolean concurrent = new AtomicBoolean();
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenAnswer(invocation -> {
+            concurrent.set(tvMeterAsked.await(5, TimeUnit.SECONDS));
+            return Collections.emptyList();
+        });
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenAnswer(invocation -> {
+            tvMeterAsked.countDown();
+            return Collections.singletonList(programPid);
+        });
+
+        /*Invoke method*/
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            new RecordCreator(testDomsClient, false, false, new ProgramPidCache(ProgramPidCache.Mode.NONE), executor,
+                              2).ingestProgram(metadataDocument, filename);
+            fail("The existing program should not be overwritten");
+        } catch (OverwriteException e) {
+            //expected, the program was found by the tvmeter identifier
+            assertTrue("Wrong pid of found program", e.getMessage().contains(programPid));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        assertTrue("The old identifiers should be looked up concurrently", concurrent.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testFoundInOldIdentifierOrder() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(),
+                                                getRitzau(ritzauOldID, approxStart, approxEnd, programTitle),
+                                                getTvMeter(tvMeterOldID, preciseStart, preciseEnd),
+                                                getProgramBroadcast(preciseStart, preciseEnd));
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+
+        //The identifiers find two duplicate programs, and the tvmeter identifier answers first
+        String duplicatePid = "uuid:"+UUID.randomUUID().toString();
+        CountDownLatch tvMeterAnswered = new CountDownLatch(1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenAnswer(invocation -> {
+            tvMeterAnswered.await(5, TimeUnit.SECONDS);
+            return Collections.singletonList(programPid);
+        });
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenAnswer(invocation -> {
+            tvMeterAnswered.countDown();
+            return Collections.singletonList(duplicatePid);
+        });
+
+        /*Invoke method*/
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            new RecordCreator(testDomsClient, false, false, new ProgramPidCache(ProgramPidCache.Mode.NONE), executor,
+                              2).ingestProgram(metadataDocument, filename);
+            fail("The existing program should not be overwritten");
+        } catch (OverwriteException e) {
+            //expected, the program is the one found by the ritzau identifier, as that comes first
+            assertTrue("Wrong pid of found program", e.getMessage().contains(programPid));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLookupWaitingIsCancelledWhenFound() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(),
+                                                getRitzau(ritzauOldID, approxStart, approxEnd, programTitle),
+                                                getTvMeter(tvMeterOldID, preciseStart, preciseEnd),
+                                                getProgramBroadcast(preciseStart, preciseEnd));
+        Document metadataDocument = documentBuilderFactory.newDocumentBuilder().parse(stream(fileContents), filename);
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+
+        /*Invoke method*/
+        ExecutorService executor = Executors.newCachedThreadPool();
+        AsyncDomsClient doms = new AsyncDomsClient(testDomsClient, executor, 2);
+        //Another ingest holds one of the calls in flight, so the tvmeter lookup waits behind the ritzau lookup
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> other = doms.call(client -> {
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        });
+        try {
+            new RecordCreator(doms, false, false, new ProgramPidCache(ProgramPidCache.Mode.NONE),
+                              new ProgramStateStore()).ingestProgram(metadataDocument, filename);
+            fail("The existing program should not be overwritten");
+        } catch (OverwriteException e) {
+            //expected, the program was found by the ritzau identifier
+            assertTrue("Wrong pid of found program", e.getMessage().contains(programPid));
+        } finally {
+            release.countDown();
+            other.join();
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        //The ritzau identifier found the program, so the tvmeter lookup was cancelled before it was made
+        verify(testDomsClient).getPidFromOldIdentifier(ritzauOldID);
+        verify(testDomsClient, never()).getPidFromOldIdentifier(tvMeterOldID);
+    }
+
+    @Test
+    public void testCheckAgainstStoredState() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        String filename = "2012-11-14_23-20-00_dr1.xml";
+
+        /*Setup constants*/
+        String programPid = "uuid:"+UUID.randomUUID().toString();
+
+        URL fileURL1 = new URL(
+                "http://bitfinder.statsbiblioteket.dk/bart/mux1.1352930400-2012-11-14-23.00.00_1352934000-2012-11-15-00.00.00_dvb1-2.ts");
+        String filePid1 = "uuid:"+UUID.randomUUID().toString();
+
+        String ritzauOldID = "5444487RitzauProgram";
+        String tvMeterOldID = "000112111423230212111500042420003100TvmeterProgram";
+        String programTitle = "Damages";
+
+        String pbCoreString = getPBCore(ritzauOldID, tvMeterOldID, programTitle);
+        Date approxStart = origDateFormat.parse("2012-11-14 23:20:00.0");
+        Date approxEnd = origDateFormat.parse("2012-11-15 00:00:00.0");
+        Date preciseStart = origDateFormat.parse("2012-11-14 23:23:02.0");
+        Date preciseEnd = origDateFormat.parse("2012-11-15 00:04:24.0");
+        String ritzauOrig = getRitzau(ritzauOldID, approxStart, approxEnd, programTitle);
+        String tvmeterOrig = getTvMeter(tvMeterOldID, preciseStart, preciseEnd);
+        String programBroadcast = getProgramBroadcast(preciseStart, preciseEnd);
+
+        String fileContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                tvmeterOrig, programBroadcast);
+        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+
+        /*Setup mocks*/
+        DomsWSClient testDomsClient = mock(DomsWSClient.class);
+        when(testDomsClient.getFileObjectPID(fileURL1)).thenReturn(filePid1);
+        when(testDomsClient.getPidFromOldIdentifier(ritzauOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getPidFromOldIdentifier(tvMeterOldID)).thenReturn(Collections.singletonList(programPid));
+        when(testDomsClient.getDataStream(programPid, RecordCreator.DC_DS_ID)).thenReturn(DOM.stringToDOM(
+                "<oai_dc:dc xmlns:oai_dc='http://www.openarchives.org/OAI/2.0/oai_dc/' xmlns:dc='" +
+                RecordCreator.DC_NAMESPACE + "'><dc:title>" + programTitle + "</dc:title></oai_dc:dc>", true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_PBCORE_DS_ID)).thenReturn(DOM.stringToDOM(pbCoreString, true));
+        when(testDomsClient.getDataStream(programPid, RITZAU_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(ritzauOrig, true));
+        when(testDomsClient.getDataStream(programPid, GALLUP_ORIGINAL_DS_ID)).thenReturn(DOM.stringToDOM(tvmeterOrig, true));
+        when(testDomsClient.getDataStream(programPid, PROGRAM_BROADCAST_DS_ID)).thenReturn(DOM.stringToDOM(programBroadcast, true));
+        when(testDomsClient.listObjectRelations(programPid, HAS_FILE_RELATION)).thenReturn(
+                Collections.singletonList(new ObjectRelationImpl(programPid, HAS_FILE_RELATION, filePid1, null)));
+
+        /*The state of the program is stored when it is published*/
+        RecordCreator recordCreator = new RecordCreator(testDomsClient, false, true,
+                                                        new ProgramPidCache(ProgramPidCache.Mode.NONE), Runnable::run,
+                                                        1, new ProgramStateStore());
+        ProgramRecord program = ProgramRecord.fromDocument(documentBuilder.parse(stream(fileContents), filename));
+        recordCreator.ingestProgram(program, filename);
+        recordCreator.published(Collections.singletonList(programPid));
+
+        /*Invoke method*/
+        String ingestedPid = recordCreator.ingestProgram(program, filename);
+        assertEquals("Wrong pid of ingested program", programPid, ingestedPid);
+
+        //The stored state is identical, so DOMS is only read by the first ingest, which had no stored state
+        verify(testDomsClient).getDataStream(eq(programPid), eq(RecordCreator.DC_DS_ID));
+        verify(testDomsClient).getDataStream(eq(programPid), eq(PROGRAM_PBCORE_DS_ID));
+        verify(testDomsClient).listObjectRelations(programPid, HAS_FILE_RELATION);
+
+        //A program that differs from the stored state is not identical, so it must be overwritten
+        String changedContents = getExportedObject(pbCoreString, fileURL1.toString(), fileURL1.toString(), ritzauOrig,
+                                                   getTvMeter(tvMeterOldID, approxStart, approxEnd), programBroadcast);
+        ProgramRecord changed = ProgramRecord.fromDocument(documentBuilder.parse(stream(changedContents), filename));
+        try {
+            recordCreator.ingestProgram(changed, filename);
+            fail("The changed program should not be regarded as identical");
+        } catch (OverwriteException e) {
+            //expected
+        }
+        verify(testDomsClient).getDataStream(eq(programPid), eq(PROGRAM_PBCORE_DS_ID));
+    }
+
     private ByteArrayInputStream stream(String pbCoreString) {
         return new ByteArrayInputStream(pbCoreString.getBytes());
     }
@@ -0,0 +1,93 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test that the updates of a batch are in flight at the same time, and that failures are reported
+ */
+public class UpdateBatchTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testRunsConcurrently() throws Exception {
+        //Every update waits for all the others, so this only completes if they are in flight at the same time
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        AtomicInteger updates = new AtomicInteger();
+        UpdateBatch batch = new UpdateBatch();
+        for (int i = 0; i < 4; i++) {
+            batch.add(() -> CompletableFuture.runAsync(() -> {
+                await(barrier);
+                updates.incrementAndGet();
+            }, executor));
+        }
+        batch.run();
+        assertEquals(4, updates.get());
+    }
+
+    @Test
+    public void testStartsInOrder() throws Exception {
+        List<Integer> started = new ArrayList<>();
+        UpdateBatch batch = new UpdateBatch();
+        for (int i = 0; i < 3; i++) {
+            int update = i;
+            batch.add(() -> {
+                started.add(update);
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        batch.run();
+        assertEquals(Arrays.asList(0, 1, 2), started);
+    }
+
+    @Test
+    public void testThrowsFirstFailureAndSkipsTheRest() throws Exception {
+        ServerOperationFailed failure = mock(ServerOperationFailed.class);
+        AtomicInteger updates = new AtomicInteger();
+        UpdateBatch batch = new UpdateBatch()
+                .add(() -> CompletableFuture.completedFuture(updates.incrementAndGet()))
+                .add(() -> {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(failure);
+                    return failed;
+                })
+                .add(() -> CompletableFuture.completedFuture(updates.incrementAndGet()));
+        try {
+            batch.run();
+            fail("The failure should be thrown");
+        } catch (ServerOperationFailed e) {
+            assertSame(failure, e);
+        }
+        assertEquals(1, updates.get());
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Test that the xml digest only sees meaningful changes
+ */
+public class XmlDigestTest {
+
+    @Test
+    public void testIgnoresCommentsWhitespaceAndPrefixes() throws Exception {
+        String control = "<a:program xmlns:a='urn:x'><a:title lang='da' type='titel'>Olivers tvist</a:title></a:program>";
+        String test = "<!-- exported -->\n<b:program xmlns:b='urn:x'>\n  <b:title type='titel' lang='da'>\n" +
+                      "Olivers tvist <!-- the title --></b:title>\n</b:program>";
+        assertEquals(digest(control), digest(test));
+    }
+
+    @Test
+    public void testSeesChangedNamespaceAndText() throws Exception {
+        String control = "<a:program xmlns:a='urn:x'><a:title>Olivers tvist</a:title></a:program>";
+        assertNotEquals(digest(control), digest("<a:program xmlns:a='urn:y'><a:title>Olivers tvist</a:title></a:program>"));
+        assertNotEquals(digest(control), digest("<a:program xmlns:a='urn:x'><a:title>Olivers  tvist</a:title></a:program>"));
+        assertNotEquals(digest(control), digest("<a:program xmlns:a='urn:x'><a:title id=''>Olivers tvist</a:title></a:program>"));
+    }
+
+    @Test
+    public void testDocumentInMemoryHasSameDigest() throws Exception {
+        String xml = "<a:program xmlns:a='urn:x' xmlns:c='urn:z'><a:title c:lang='da'>Olivers tvist</a:title></a:program>";
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        assertEquals(digest(xml), XmlDigest.digest(document));
+    }
+
+    private String digest(String xml) throws Exception {
+        return XmlDigest.digest(new InputSource(new StringReader(xml)));
+    }
+}